@@ -9,12 +9,17 @@ import static androidx.test.espresso.matcher.ViewMatchers.withText;
 
 import static org.junit.Assert.assertEquals;
 
+import android.view.View;
 import android.widget.TimePicker;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import androidx.test.espresso.IdlingRegistry;
+import androidx.test.espresso.IdlingResource;
 import androidx.test.espresso.contrib.PickerActions;
 import androidx.test.espresso.matcher.ViewMatchers;
 import androidx.test.ext.junit.rules.ActivityScenarioRule;
@@ -36,10 +41,83 @@ import java.util.Calendar;
 @SmallTest
 public class WalkingAlarmUITests {
 
+    // how often in ms to check if the add button is enabled while waiting on it.
+    private static final long ENABLED_POLL_MS = 50;
+
     @Rule
     public ActivityScenarioRule<MainActivity> activityRule
             = new ActivityScenarioRule<>(MainActivity.class);
 
+    // busy until the add button is enabled, which it is once the alarms are loaded.
+    private IdlingResource fabEnabledIdlingResource;
+
+    /**
+     * Wait for the alarms to load before each test, the add button is disabled until they are.
+     */
+    @Before
+    public void registerIdlingResource() {
+        activityRule.getScenario().onActivity(activity ->
+                fabEnabledIdlingResource = new ViewEnabledIdlingResource(
+                        activity.findViewById(R.id.fab)));
+        IdlingRegistry.getInstance().register(fabEnabledIdlingResource);
+    }
+
+    /**
+     * Stop waiting on the alarms loading once each test is done.
+     */
+    @After
+    public void unregisterIdlingResource() {
+        IdlingRegistry.getInstance().unregister(fabEnabledIdlingResource);
+    }
+
+    /**
+     * IdlingResource which is idle once a view is enabled. The view has no listener for being
+     * enabled, so while it is busy it checks again every ENABLED_POLL_MS.
+     */
+    private static class ViewEnabledIdlingResource implements IdlingResource {
+        // the view to wait on.
+        private final View view;
+        // told once the view is enabled, null until Espresso registers it.
+        private volatile ResourceCallback callback;
+        // checks the view every ENABLED_POLL_MS until it is enabled, then tells the callback.
+        private final Runnable checkEnabled = new Runnable() {
+            @Override
+            public void run() {
+                if(!view.isEnabled())
+                    view.postDelayed(this, ENABLED_POLL_MS);
+                else if(callback != null)
+                    callback.onTransitionToIdle();
+            }
+        };
+
+        /**
+         * Constructor for ViewEnabledIdlingResource.
+         * @param view the view to wait on.
+         */
+        ViewEnabledIdlingResource(View view){
+            this.view = view;
+        }
+
+        @Override
+        public String getName() {
+            return "ViewEnabled:" + view.getId();
+        }
+
+        @Override
+        public boolean isIdleNow() {
+            if(view.isEnabled())
+                return true;
+            view.removeCallbacks(checkEnabled);
+            view.postDelayed(checkEnabled, ENABLED_POLL_MS);
+            return false;
+        }
+
+        @Override
+        public void registerIdleTransitionCallback(ResourceCallback callback) {
+            this.callback = callback;
+        }
+    }
+
     /**
      * Add a duplicate alarm and make sure only one alarm ends up being added.
      */
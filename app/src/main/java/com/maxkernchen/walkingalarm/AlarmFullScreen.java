@@ -7,18 +7,21 @@ import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
 import android.app.KeyguardManager;
+import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.TaskStackBuilder;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 
+import android.os.IBinder;
 import android.view.WindowManager;
-import android.widget.TextView;
 
 import com.maxkernchen.walkingalarm.databinding.ActivityAlarmFullScreenBinding;
 
@@ -27,7 +30,8 @@ import com.maxkernchen.walkingalarm.databinding.ActivityAlarmFullScreenBinding;
  * Half of this class is auto-generated by Android Studio for compatibility between APIs
  * to hide System UI elements.
  *
- * The other half contains a broadcast receiver to dismiss or update the full screen UI elements.
+ * The other half binds to the AlarmService to show the steps remaining as they change, and
+ * contains a broadcast receiver to dismiss the full screen UI elements.
  *
  * @version 1.4
  * @author Max Kernchen
@@ -47,48 +51,19 @@ public class AlarmFullScreen extends AppCompatActivity {
      */
     public static final String CHANNEL_DESCRIPTION = "WalkingAlarmNotificationChannelDescription";
 
-    /**
-     * public Static String for the Alarm Full Screen Action that triggers the notification.
-     */
-    public static final String FULL_SCREEN_ACTION_ALARM = "AlarmActionFullScreen";
-    /**
-     * public Static String for the Alarm Full Screen Action that tracks steps walked so far.
-     */
-    public static final String WALK_ACTION = "AlarmActionWalk";
     /**
      * public Static String for the Alarm Full Screen Action that dismisses the notification.
      */
     public static final String DISMISS_ALARM_ACTION = "AlarmActionDismiss";
-    /**
-     * public Static String intent extra that stores current steps.
-     */
-    public static final String INTENT_EXTRA_STEPS = "StepsStringExtra";
-    /**
-     * public Static String intent extra that stores the alarm name.
-     */
-    public static final String INTENT_EXTRA_ALARM_NAME = "AlarmNameExtra";
-    /**
-     * public Static String intent extra that stores the alarm sound uri.
-     */
-    public static final String INTENT_EXTRA_ALARM_SOUND_URI = "AlarmSoundUriExtra";
-    /**
-     * public Static String intent extra that stores the alarm sound uri.
-     */
-    public static final String INTENT_EXTRA_ALARM_VIBRATE_BOOL = "AlarmVibrateBoolExtra";
-    /**
-     * public Static String intent extra that stores the alarm channel id.
-     */
-    public static final String INTENT_EXTRA_ALARM_CHANNEL_ID = "AlarmChannelIDExtra";
     /**
      * public Static int intent extra that stores notification id.
      */
     public static final int NOTIFICATION_ID_ALARM = 1;
 
-    /** bool used to monitor when the Full Screen activity is created,
-     *  these is always a few second delay between when we find an alarm and the notification
-     *  reaches the users. This helps us know when to start monitoring user steps.
+    /** bool used to monitor when the Full Screen activity is created, read by the AlarmService
+     *  session thread to know if the user saw the alarm dismissed.
      */
-    public static boolean isCreated = false;
+    public static volatile boolean isCreated = false;
 
     /**
      * Static vibration pattern to be used when vibration is enabled.
@@ -100,6 +75,36 @@ public class AlarmFullScreen extends AppCompatActivity {
      */
     private BroadcastReceiver alarmFullScreenReceiver;
 
+    /**
+     * the AlarmService while bound to it, null otherwise.
+     */
+    private AlarmService alarmService;
+
+    /**
+     * shows the steps remaining from the AlarmService, called on the main thread.
+     */
+    private final AlarmService.ProgressListener progressListener = stepsRemaining ->
+            binding.fullscreenContent.setText(getString(R.string.alarm_steps_remaining,
+                    stepsRemaining));
+
+    /**
+     * connection to the AlarmService, listens to its progress while connected.
+     */
+    private final ServiceConnection alarmServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            alarmService = ((AlarmService.LocalBinder) service).getService();
+            alarmService.addProgressListener(progressListener);
+            // the alarm is in front of the user, so the wait for steps can start.
+            alarmService.onAlarmShown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            alarmService = null;
+        }
+    };
+
     /**
      * binding for our full screen activity
      */
@@ -135,8 +140,33 @@ public class AlarmFullScreen extends AppCompatActivity {
 
         registerReceiver();
         isCreated = true;
+        AlarmLatencyTracker.getInstance(this).mark(AlarmLatencyTracker.Stage.FULL_SCREEN_SHOWN);
+
+    }
+
+    /**
+     * onStart is overridden here to bind to the AlarmService while the activity is visible, the
+     * service is not started by binding if no alarm is running.
+     */
+    @Override
+    public void onStart() {
+        super.onStart();
+        bindService(new Intent(this, AlarmService.class), alarmServiceConnection, 0);
+    }
 
+    /**
+     * onStop is overridden here to stop listening and unbind from the AlarmService.
+     */
+    @Override
+    public void onStop() {
+        super.onStop();
+        if (alarmService != null) {
+            alarmService.removeProgressListener(progressListener);
+            alarmService = null;
+        }
+        unbindService(alarmServiceConnection);
     }
+
     /**
      * onDestroy is overridden here to unregister the broadcast receiver.
      */
@@ -155,56 +185,39 @@ public class AlarmFullScreen extends AppCompatActivity {
     }
 
     /**
-     * define our broadcast receiver, there are three filters.
+     * define our broadcast receiver, which has one filter.
      *
-     * 1. WALK_ACTION -  update the UI with remaining steps to dismiss alarm
-     * 2. DISMISS_ALARM_ACTION - dismisses the notification/full screen activity,
-     *    goes back to previous activity.
-     * 3. FULL_SCREEN_ACTION_ALARM - starts the notification/full screen activity.
+     * DISMISS_ALARM_ACTION - dismisses the notification/full screen activity,
+     * goes back to previous activity.
      */
     private void registerReceiver() {
         alarmFullScreenReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 switch (intent.getAction()) {
-                    case AlarmFullScreen.WALK_ACTION: {
-                        int steps = intent.getIntExtra
-                                (AlarmFullScreen.INTENT_EXTRA_STEPS, -1);
-                        if (steps >= 0) {
-                            TextView view = (TextView) findViewById(R.id.fullscreen_content);
-                            view.setText(getString(R.string.alarm_steps_remaining, steps));
-                        }
-                        break;
-                    }
                     case AlarmFullScreen.DISMISS_ALARM_ACTION: {
-                        String alarmChanID = intent.getStringExtra(
-                                AlarmFullScreen.INTENT_EXTRA_ALARM_CHANNEL_ID);
-                        cancelFullScreenNotification(context, alarmChanID);
+                        cancelFullScreenNotification(context);
                         break;
                     }
                 }
             }
         };
         IntentFilter filter = new IntentFilter();
-        filter.addAction(AlarmFullScreen.WALK_ACTION);
         filter.addAction(AlarmFullScreen.DISMISS_ALARM_ACTION);
         registerReceiver(alarmFullScreenReceiver, filter);
     }
 
 
     /**
-     * Cancel the current notification and move the full screen activity to the back.
+     * Cancel the current notification and move the full screen activity to the back. The
+     * notification channel is kept in the NotificationChannelPool for the next alarm.
      * @param context - context sent from AlarmReceiver.
-     * @param alarmChannelID - the channel id of the alarm,
-     *                       used to uniquely make each notification channel
      */
-    private void cancelFullScreenNotification(Context context, String alarmChannelID) {
+    private void cancelFullScreenNotification(Context context) {
         isCreated = false;
 
         NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
         notificationManager.cancel(AlarmFullScreen.NOTIFICATION_ID_ALARM);
-        notificationManager.deleteNotificationChannel
-                (AlarmFullScreen.CHANNEL_ID + alarmChannelID);
 
         ActionBar actionBar = getSupportActionBar();
         if (actionBar != null) {
@@ -215,15 +228,17 @@ public class AlarmFullScreen extends AppCompatActivity {
     }
 
     /**
-     * Create the notification using context from alarm service.
+     * Build the notification, along with the PendingIntent which opens this activity, using
+     * context from alarm service. Done ahead of the alarm by PreparedAlarm.
      * @param context - context from alarm service.
      * @param alarmName - name of alarm to be used on notification text.
-     * @param alarmChannelID - unique channel id for this notification
+     * @param alarmChannelID - id of the channel from the NotificationChannelPool
      * @param steps steps to dismiss to be used in notification subtext
+     * @return the notification, ready to be posted by postFullScreenNotification.
      */
-    public static void createFullScreenNotification(Context context, String alarmName,
-                                                    String alarmChannelID,
-                                                    int steps) {
+    public static Notification buildFullScreenNotification(Context context, String alarmName,
+                                                           String alarmChannelID,
+                                                           int steps) {
         Intent intent = new Intent(context, AlarmFullScreen.class);
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_NO_USER_ACTION |
                 Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP) ;
@@ -243,7 +258,7 @@ public class AlarmFullScreen extends AppCompatActivity {
                         pendingFlag);
 
         NotificationCompat.Builder notificationBuilder =
-                new NotificationCompat.Builder(context, CHANNEL_ID + alarmChannelID)
+                new NotificationCompat.Builder(context, alarmChannelID)
                         .setSmallIcon(R.drawable.ic_walk_action_foreground)
                         .setContentTitle(context.getString(R.string.alarm_notification_text,
                                 alarmName))
@@ -255,7 +270,15 @@ public class AlarmFullScreen extends AppCompatActivity {
                         .setFullScreenIntent(resultPendingIntent, true)
                         .setAutoCancel(false)
                         .setOngoing(true);
+        return notificationBuilder.build();
+    }
 
+    /**
+     * Post the full screen notification, unless the user has not allowed notifications.
+     * @param context - context from alarm service.
+     * @param notification - the notification from buildFullScreenNotification.
+     */
+    public static void postFullScreenNotification(Context context, Notification notification) {
         NotificationManagerCompat notificationManager = NotificationManagerCompat.
                 from(context);
         if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.POST_NOTIFICATIONS)
@@ -263,7 +286,7 @@ public class AlarmFullScreen extends AppCompatActivity {
 
             return;
         }
-        notificationManager.notify(NOTIFICATION_ID_ALARM, notificationBuilder.build());
+        notificationManager.notify(NOTIFICATION_ID_ALARM, notification);
 
     }
 }
@@ -0,0 +1,251 @@
+package com.maxkernchen.walkingalarm;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AlarmLatencyTracker class records how long each stage of an alarm takes, from the minute the
+ * alarm was due to it being dismissed. Each stage is marked with SystemClock.elapsedRealtime as
+ * it is reached, and once the session ends the latency of each stage from the trigger is kept
+ * for the last MAX_SESSIONS sessions, so a report can give the p50 and p95 of each stage and
+ * regressions in time to ring can be seen.
+ *
+ * Only one session is tracked at a time, as only one alarm rings at a time.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class AlarmLatencyTracker {
+
+    /**
+     * Stages of an alarm session, in the order they are reached.
+     */
+    public enum Stage {
+        /** the minute the alarm was due. */
+        TRIGGER,
+        /** the AlarmReceiver got the alarm from the AlarmManager. */
+        RECEIVER,
+        /** the AlarmService started the session. */
+        SERVICE,
+        /** the alarm due was found in the AlarmStore. */
+        ALARM_FOUND,
+        /** the full screen notification was posted. */
+        NOTIFICATION_POSTED,
+        /** the AlarmFullScreen activity was created. */
+        FULL_SCREEN_SHOWN,
+        /** the first steps were read from the StepSource. */
+        FIRST_STEPS,
+        /** the alarm was dismissed, for any reason. */
+        DISMISSED
+    }
+
+    // number of past sessions kept for the report.
+    private static final int MAX_SESSIONS = 20;
+    // name of the file past sessions are kept in.
+    private static final String HISTORY_FILE_NAME = "alarm_latency.csv";
+    // log tag for logging.
+    private static final String logTag = "AlarmLatencyTracker";
+    // single instance of the tracker shared by the whole process.
+    private static AlarmLatencyTracker instance;
+    // the file past sessions are kept in.
+    private final File file;
+    // elapsed realtime each stage of the current session was reached, 0 if it was not, null if
+    // there is no current session.
+    private long[] currentSession;
+    // latency in ms of each stage from the trigger for past sessions, oldest first, -1 if a
+    // stage was not reached. null until first read.
+    private List<long[]> history;
+
+    /**
+     * Constructor for AlarmLatencyTracker.
+     * @param file the file to keep past sessions in.
+     */
+    private AlarmLatencyTracker(File file){
+        this.file = file;
+    }
+
+    /**
+     * Get the process wide AlarmLatencyTracker, creating it on first use.
+     * @param context context used to find the files directory.
+     * @return the AlarmLatencyTracker instance.
+     */
+    public static synchronized AlarmLatencyTracker getInstance(Context context){
+        if(instance == null){
+            instance = new AlarmLatencyTracker(new File(
+                    context.getApplicationContext().getFilesDir(), HISTORY_FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Start tracking a session once the AlarmService starts a new alarm session, replacing any
+     * session left over. The trigger is worked out from how late the AlarmReceiver got the alarm.
+     * @param fireTimeMillis the wall clock time the alarm was due.
+     * @param receivedRealtime the elapsed realtime the AlarmReceiver got the alarm.
+     */
+    public synchronized void beginSession(long fireTimeMillis, long receivedRealtime){
+        long deliveryDelay = Math.max(System.currentTimeMillis() - fireTimeMillis -
+                (SystemClock.elapsedRealtime() - receivedRealtime), 0);
+        currentSession = new long[Stage.values().length];
+        currentSession[Stage.TRIGGER.ordinal()] = receivedRealtime - deliveryDelay;
+        currentSession[Stage.RECEIVER.ordinal()] = receivedRealtime;
+    }
+
+    /**
+     * Mark a stage of the current session as reached now, only the first mark of each stage is
+     * kept. Does nothing if there is no current session.
+     * @param stage the stage reached.
+     */
+    public synchronized void mark(Stage stage){
+        if(currentSession != null && currentSession[stage.ordinal()] == 0)
+            currentSession[stage.ordinal()] = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Drop the current session without keeping it, such as when no alarm was due.
+     */
+    public synchronized void cancelSession(){
+        currentSession = null;
+    }
+
+    /**
+     * End the current session, marking it DISMISSED, and keep it with the past sessions.
+     * @return a report of the session and the past sessions, or null if there is no current
+     * session.
+     */
+    public synchronized String endSession(){
+        if(currentSession == null)
+            return null;
+        mark(Stage.DISMISSED);
+        long trigger = currentSession[Stage.TRIGGER.ordinal()];
+        long[] latencies = new long[currentSession.length];
+        for(int i = 0; i < latencies.length; i++){
+            latencies[i] = currentSession[i] == 0 ? -1 : currentSession[i] - trigger;
+        }
+        currentSession = null;
+
+        load();
+        history.add(latencies);
+        while(history.size() > MAX_SESSIONS){
+            history.remove(0);
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            Log.w(logTag, "Could not save alarm latency history", e);
+        }
+        String report = report(latencies);
+        Log.i(logTag, report);
+        return report;
+    }
+
+    /**
+     * Helper method which makes a report with the latency of each stage of a session, with the
+     * p50 and p95 of the stage over the past sessions.
+     * @param latencies latency in ms of each stage of the session.
+     * @return the report, one line for each stage.
+     */
+    private String report(long[] latencies){
+        StringBuilder report = new StringBuilder();
+        for(Stage stage : Stage.values()){
+            if(stage == Stage.TRIGGER)
+                continue;
+            long[] past = pastLatencies(stage);
+            report.append(stage.name()).append(": ")
+                    .append(latencies[stage.ordinal()] < 0 ? "-" : latencies[stage.ordinal()])
+                    .append(" ms (p50 ").append(percentile(past, 50))
+                    .append(", p95 ").append(percentile(past, 95))
+                    .append(", n ").append(past.length).append(")\n");
+        }
+        return report.toString().trim();
+    }
+
+    /**
+     * Helper method which gets the latencies of a stage over the past sessions which reached it.
+     * @param stage the stage.
+     * @return the latencies in ms, sorted.
+     */
+    private long[] pastLatencies(Stage stage){
+        long[] past = new long[history.size()];
+        int count = 0;
+        for(long[] session : history){
+            if(session[stage.ordinal()] >= 0)
+                past[count++] = session[stage.ordinal()];
+        }
+        past = Arrays.copyOf(past, count);
+        Arrays.sort(past);
+        return past;
+    }
+
+    /**
+     * Helper method which gets a percentile from sorted values, by the nearest rank.
+     * @param sorted the values, sorted.
+     * @param percentile the percentile, from 1 to 100.
+     * @return the value at the percentile, -1 if there are no values.
+     */
+    private static long percentile(long[] sorted, int percentile){
+        if(sorted.length == 0)
+            return -1;
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * Helper method which reads the past sessions the first time they are needed, sessions
+     * which can not be read are dropped.
+     */
+    private void load(){
+        if(history != null)
+            return;
+        history = new ArrayList<>();
+        if(!file.exists())
+            return;
+        try(BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] values = line.split(",");
+                if(values.length != Stage.values().length)
+                    continue;
+                long[] latencies = new long[values.length];
+                for(int i = 0; i < values.length; i++){
+                    latencies[i] = Long.parseLong(values[i]);
+                }
+                history.add(latencies);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(logTag, "Could not read alarm latency history", e);
+        }
+    }
+
+    /**
+     * Helper method which writes the past sessions, one line of comma separated latencies for
+     * each.
+     * @throws IOException if the file could not be written.
+     */
+    private void save() throws IOException {
+        try(PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            for(long[] latencies : history){
+                StringBuilder line = new StringBuilder();
+                for(int i = 0; i < latencies.length; i++){
+                    if(i > 0)
+                        line.append(',');
+                    line.append(latencies[i]);
+                }
+                writer.println(line);
+            }
+            if(writer.checkError())
+                throw new IOException("Could not write " + file);
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.maxkernchen.walkingalarm;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.view.LayoutInflater;
@@ -15,21 +14,32 @@ import android.widget.ToggleButton;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.widget.SwitchCompat;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.button.MaterialButton;
-import com.google.gson.Gson;
+import java.io.IOException;
 import java.time.DayOfWeek;
-import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
 
 /**
- * AlarmListAdapter class which extends RecyclerView.Adapter.
- * Link to alarm_list layout, holds a list of alarmItems and saves/updates
- * them to SharedPreferences.
+ * AlarmListAdapter class which extends ListAdapter.
+ * Link to alarm_list layout, holds a list of alarmItems and marks them dirty in the
+ * AlarmWriter as each is changed, which saves them to the AlarmStore off the main thread.
+ * Which alarms are expanded is UI state only, and is never saved.
+ *
+ * The alarm items in the AlarmRepository are the ones changed and handed to the AlarmWriter.
+ * After every add, delete or change a snapshot of them, with each alarm item copied, is
+ * submitted, and the ListAdapter works out the changes with DiffUtil on a background thread
+ * against the last snapshot. So only the rows which moved or changed are touched, and a changed
+ * row is given payloads naming what changed, so only those views are bound again. Alarm times
+ * are unique and never change, so the minute of the day is the stable id of each row.
  *
  * @version 1.4
  * @author Max Kernchen
@@ -37,19 +47,99 @@ import java.util.List;
 
 
 public class AlarmListAdapter extends
-        RecyclerView.Adapter<AlarmListAdapter.AlarmViewHolder> {
-    // list of alarmItems which represent each alarm.
-    private List<AlarmItem> alarmItems;
-    //SharedPreferences for storing alarm items using GSON.
-    private SharedPreferences prefs;
+        ListAdapter<AlarmItem, AlarmListAdapter.AlarmViewHolder> {
+    // payload when the alarm is switched on or off, a DayOfWeek is the payload when that day is
+    // toggled.
+    private static final Object PAYLOAD_ACTIVE = new Object();
+    // payload when the alarm is expanded or collapsed.
+    private static final Object PAYLOAD_EXPANDED = new Object();
+    // payload when the alarm sound changes.
+    private static final Object PAYLOAD_SOUND = new Object();
+    // finds alarms which are the same row, and rows which need to be bound again.
+    private static final DiffUtil.ItemCallback<AlarmItem> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<AlarmItem>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull AlarmItem oldItem,
+                                               @NonNull AlarmItem newItem) {
+                    return oldItem.getMinuteOfDay() == newItem.getMinuteOfDay();
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull AlarmItem oldItem,
+                                                  @NonNull AlarmItem newItem) {
+                    return oldItem.isActive() == newItem.isActive() &&
+                            oldItem.getDaysOfWeekMask() == newItem.getDaysOfWeekMask() &&
+                            oldItem.getAlarmSoundUri().equals(newItem.getAlarmSoundUri());
+                }
+
+                @Override
+                public Object getChangePayload(@NonNull AlarmItem oldItem,
+                                               @NonNull AlarmItem newItem) {
+                    List<Object> payloads = new ArrayList<>();
+                    if(oldItem.isActive() != newItem.isActive())
+                        payloads.add(PAYLOAD_ACTIVE);
+                    for(DayOfWeek dayOfWeek : DayOfWeek.values()){
+                        if(oldItem.hasDayOfWeek(dayOfWeek) != newItem.hasDayOfWeek(dayOfWeek))
+                            payloads.add(dayOfWeek);
+                    }
+                    if(!oldItem.getAlarmSoundUri().equals(newItem.getAlarmSoundUri()))
+                        payloads.add(PAYLOAD_SOUND);
+                    return payloads;
+                }
+            };
+    // alarmItems which represent each alarm indexed by time, changed on the main thread and
+    // submitted as a snapshot after each change.
+    private AlarmRepository alarmItems;
+    // process wide writer which saves changed alarm items in the background.
+    private AlarmWriter alarmWriter;
+    // minute of the day of each alarm expanded in the list, alarm times are unique.
+    private Set<Integer> expandedAlarmTimes = new HashSet<>();
+
+    /**
+     * Constructor for AlarmListAdapter, the list is empty until loadAlarms delivers the items
+     * stored in the AlarmStore.
+     * @param context Context used to get the AlarmWriter.
+     */
+    public AlarmListAdapter(Context context) {
+        super(DIFF_CALLBACK);
+        setHasStableIds(true);
+        this.alarmWriter = AlarmWriter.getInstance(context);
+        this.alarmItems = new AlarmRepository(Collections.emptyList());
+    }
+
+    /**
+     * Load the items stored in the AlarmStore on a background thread, and show them once read.
+     * Alarms must not be added until they are loaded, or duplicates could not be found.
+     * @param onLoaded called on the main thread once the alarms are shown.
+     */
+    public void loadAlarms(Runnable onLoaded){
+        alarmWriter.load(items -> {
+            alarmItems = new AlarmRepository(items);
+            submitAlarms(onLoaded);
+        });
+    }
 
     /**
-     * Constructor for AlarmListAdapter will set the shared prefs and get current items stored.
-     * @param prefs SharedPreferences that we use to store alarm items.
+     * Helper method which submits a snapshot of the alarm items, each copied so the next change
+     * to an alarm item is seen by DiffUtil against this snapshot.
+     * @param onCommitted called once the snapshot is shown, may be null.
      */
-    public AlarmListAdapter(SharedPreferences prefs) {
-        this.prefs = prefs;
-        this.alarmItems = getAlarmItemsStatic(prefs);
+    private void submitAlarms(Runnable onCommitted){
+        List<AlarmItem> snapshot = alarmItems.toList();
+        for(int i = 0; i < snapshot.size(); i++){
+            snapshot.set(i, new AlarmItem(snapshot.get(i)));
+        }
+        submitList(snapshot, onCommitted);
+    }
+
+    /**
+     * Helper method which gets the alarm item held in the AlarmRepository for a row, the row
+     * only holds a snapshot of it.
+     * @param position the position of the row.
+     * @return the alarm item, or null if it has been deleted.
+     */
+    private AlarmItem getAlarmItem(int position){
+        return alarmItems.get(getItem(position).getMinuteOfDay());
     }
 
     /**
@@ -72,95 +162,83 @@ public class AlarmListAdapter extends
     }
 
     /**
-     * onBindViewHolder overridden, will bind the current alarm item and save all changes.
+     * onBindViewHolder overridden, will bind the current alarm item.
+     * Changes are saved where they are made, so binding never writes to the AlarmStore.
      * @param holder the holder class which we will bind the alarm item to.
      * @param position the position which was changed.
      */
     @Override
     public void onBindViewHolder(@NonNull AlarmViewHolder holder, int position) {
-        AlarmItem alarmItem = alarmItems.get(position);
-        holder.bind(alarmItem);
-        this.saveAlarmItems();
+        holder.bind(getItem(position));
     }
 
     /**
-     * Use alarmItems to get the amount of items in the RecycleView.
-     * @return size of alarmItems array
+     * onBindViewHolder with payloads, binds only the views named by the payloads, or the whole
+     * alarm item if there are none. Payloads from DiffUtil come as a list of payloads.
+     * @param holder the holder class which we will bind the alarm item to.
+     * @param position the position which was changed.
+     * @param payloads what changed in the alarm item.
      */
     @Override
-    public int getItemCount() {
-        return alarmItems.size();
+    public void onBindViewHolder(@NonNull AlarmViewHolder holder, int position,
+                                 @NonNull List<Object> payloads) {
+        if(payloads.isEmpty()){
+            onBindViewHolder(holder, position);
+            return;
+        }
+        AlarmItem alarmItem = getItem(position);
+        for(Object payload : payloads){
+            if(payload instanceof List){
+                for(Object changePayload : (List<?>) payload){
+                    holder.bindPayload(alarmItem, changePayload);
+                }
+            }
+            else
+                holder.bindPayload(alarmItem, payload);
+        }
     }
 
     /**
-     * Save all alarm items by using shared preferences and GSON.
+     * The minute of the day is unique to each alarm and never changes, so is its stable id.
+     * @param position the position of the alarm item.
+     * @return the stable id of the row.
      */
-    private void saveAlarmItems(){
-        // get current items in shared prefs, this is because the service changes shared prefs
-        // statically, and we need to persist the isAlarmTriggered bool between UI changes.
-        List<AlarmItem> currentItemSharedPrefs = getAlarmItemsStatic(prefs);
-        SharedPreferences.Editor prefsEditor = prefs.edit();
-        Gson gson = new Gson();
-        for (int i = 0; i < alarmItems.size(); i++) {
-            AlarmItem tempItem = alarmItems.get(i);
-            int indexPrefs = currentItemSharedPrefs.indexOf(tempItem);
-            // set alarm triggered to what it should be currently stored in the static shared prefs.
-            if(indexPrefs >= 0)
-                tempItem.setAlarmTriggered(currentItemSharedPrefs.get(indexPrefs).
-                        isAlarmTriggered());
-            prefsEditor.putString(String.valueOf(i), gson.toJson(tempItem));
-
-        }
-        prefsEditor.apply();
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getMinuteOfDay();
     }
 
     /**
-     * save alarm items statically, this is called by the AlarmService class.
-     * @param itemsStatic a list of items to save
-     * @param prefs the shared preferences to save the items to.
+     * Mark one alarm item as changed, the AlarmWriter saves it and re-arms the next alarm once
+     * changes stop coming in.
+     * @param item the alarm item which was changed.
      */
-    private static void saveAlarmItemsStatic(List<AlarmItem> itemsStatic, SharedPreferences prefs){
-        SharedPreferences.Editor prefsEditor = prefs.edit();
-        Gson gson = new Gson();
-        int i = 0;
-        for (AlarmItem item : itemsStatic) {
-            prefsEditor.putString(String.valueOf(i), gson.toJson(item));
-            i++;
-        }
-        prefsEditor.apply();
+    private void saveAlarmItem(AlarmItem item){
+        alarmWriter.markDirty(item);
     }
 
     /**
-     * Get alarm items from a passed in SharedPreferences statically
-     * @param prefs the preferences to get the alarm items from
-     * @return List of Alarm Items from shared preferences.
+     * Save any changed alarm items now, called when the activity is stopped.
      */
-    public static List<AlarmItem> getAlarmItemsStatic(SharedPreferences prefs){
-        Gson gson = new Gson();
-        int i = 0;
-        List<AlarmItem> items = new ArrayList<>();
-        String jsonItem = prefs.getString(String.valueOf(i), "");
-        while(!jsonItem.isEmpty()){
-            AlarmItem item = gson.fromJson(jsonItem, AlarmItem.class);
-            items.add(item);
-            i++;
-            jsonItem = prefs.getString(String.valueOf(i), "");
-        }
-
-        return items;
-
+    public void flushPendingWrites(){
+        alarmWriter.flush();
     }
 
     /**
-     * Update the alarm sound and make sure changes are bound.
-     * @param index index of alarm item to update
+     * Update the alarm sound and make sure changes are bound. The alarm is found by its time,
+     * as the list may have changed while the sound was picked.
+     * @param minuteOfDay minute of the day of the alarm item to update, its stable id.
      * @param alarmUri Uri SoundUri we need to play
      * @param alarmName String alarmName of the sound to play
      */
-    public void updateAlarmSound(int index, Uri alarmUri, String alarmName){
-        AlarmItem item = alarmItems.get(index);
+    public void updateAlarmSound(int minuteOfDay, Uri alarmUri, String alarmName){
+        AlarmItem item = alarmItems.get(minuteOfDay);
+        // deleted while the sound was picked.
+        if(item == null)
+            return;
         item.updateAlarmSound(alarmUri.toString(), alarmName);
-        notifyItemChanged(index);
+        saveAlarmItem(item);
+        submitAlarms(null);
     }
 
     /**
@@ -169,80 +247,53 @@ public class AlarmListAdapter extends
      * @return false if the alarm item is a duplicate, else true.
      */
     public boolean addAlarmItem(AlarmItem item){
-        if(checkForDuplicateAlarmItem(item))
+        if(!alarmItems.add(item))
             return false;
 
-        alarmItems.add(item);
+        saveAlarmItem(item);
         // new item is expanded for day of week selection
-        alarmItems.get(alarmItems.size() - 1).setExpanded(true);
-        notifyItemChanged(alarmItems.size());
+        expandedAlarmTimes.add(item.getMinuteOfDay());
+        submitAlarms(null);
 
         return true;
     }
 
     /**
-     * Helper method to check for any duplicate alarm items before adding.
-     * @param item alarm item we want to add.
-     * @return True if passed in AlarmItem is a duplicate, else false.
-     */
-    private boolean checkForDuplicateAlarmItem(AlarmItem item){
-        for (AlarmItem itemLoop: this.alarmItems) {
-            if(itemLoop.equals(item))
-                return true;
-        }
-        return false;
-    }
-
-    /**
-     * Delete an alarm item, also removes it from shared preferences.
+     * Delete an alarm item, also removes it from the AlarmStore.
      * @param index index of AlarmItem to remove.
      */
     public void deleteAlarmItem(int index){
-        SharedPreferences.Editor prefsEditor = prefs.edit();
-        prefsEditor.clear();
-        prefsEditor.apply();
-        alarmItems.remove(index);
-        notifyItemRemoved(index);
-        //re-save to align items.
-        saveAlarmItems();
+        AlarmItem item = alarmItems.remove(getItem(index).getMinuteOfDay());
+        // already deleted, the list shown has not caught up yet.
+        if(item == null)
+            return;
+        expandedAlarmTimes.remove(item.getMinuteOfDay());
+        alarmWriter.delete(item);
+        submitAlarms(null);
 
     }
 
     /**
      * Method called by alarm service to check if any alarm are ready to be triggered.
-     * If one is found, return it.
-     * @param staticItems items to check for if any are triggered
-     * @param prefs preferences to save changes when an alarm is triggered
+     * If one is found, return it. Uses the minute of the week index in the AlarmStore so only
+     * the alarm due at the trigger time is looked at. Firing is recorded with one append to the
+     * TriggerJournal, the alarm settings are never written.
+     * @param alarmStore the store holding the alarm items to check.
+     * @param triggerJournal the journal of which occurrence each alarm last fired for.
+     * @param triggerTimeMillis the time the alarm was armed for, checked against each alarm.
      * @return AlarmItem if Alarm is ready to be triggered, else null.
+     * @throws IOException if the TriggerJournal could not be read or written.
      */
-    public static AlarmItem triggerAlarmStatic(List<AlarmItem> staticItems, SharedPreferences prefs)
+    public static AlarmItem triggerAlarmStatic(AlarmStore alarmStore,
+                                               TriggerJournal triggerJournal,
+                                               long triggerTimeMillis) throws IOException
     {
-        // get current time and day of week.
-        Calendar now = Calendar.getInstance();
-        LocalDate nowDate = LocalDate.now();
-        boolean alarmTime;
-
-        for(AlarmItem item : staticItems){
-            Calendar tempCal = item.getAlarmDate();
-            HashSet<DayOfWeek> daysOfWeek = item.getDaysOfWeek();
-            // check if alarm is matching current hour/minute and day of week.
-            alarmTime = (tempCal.get(Calendar.HOUR_OF_DAY) == now.get(Calendar.HOUR_OF_DAY)
-                    && tempCal.get(Calendar.MINUTE) == now.get(Calendar.MINUTE) &&
-                    daysOfWeek.contains(nowDate.getDayOfWeek()));
-            // we need to make sure the alarm was not already triggered and it's active.
-            if(alarmTime && !item.isAlarmTriggered() && item.isActive()){
-                item.setAlarmTriggered(true);
-                AlarmListAdapter.saveAlarmItemsStatic(staticItems, prefs);
-                return item;
-            }
-            // if the alarm was triggered last time set it to false.
-            else if(!alarmTime && item.isAlarmTriggered()){
-                item.setAlarmTriggered(false);
-                AlarmListAdapter.saveAlarmItemsStatic(staticItems, prefs);
-          }
-        }
-        // okay to return null as there is null check on alarm service side.
-        return null;
+        int minuteOfWeek = AlarmIndex.minuteOfWeek(triggerTimeMillis, TimeZone.getDefault());
+        // the journal makes sure the alarm has not already fired for this occurrence, the
+        // index only holds active alarms. okay to return null as there is null check on alarm
+        // service side.
+        return triggerJournal.fireFirst(alarmStore.getAlarmsDueAt(minuteOfWeek),
+                triggerTimeMillis);
     }
 
 
@@ -282,14 +333,47 @@ public class AlarmListAdapter extends
          */
         private void bind(AlarmItem alarmItem){
             alarmNameTextView.setText(alarmItem.getAlarmName());
-            boolean expanded = alarmItem.isExpanded();
-            subItem.setVisibility(expanded ? View.VISIBLE : View.GONE);
+            bindExpanded(alarmItem);
             boolean active = alarmItem.isActive();
             alarmActiveSwitch.setChecked(active);
             bindDayOfWeekToggle(alarmItem);
             alarmSoundPicker.setText(alarmItem.getAlarmSoundName());
         }
 
+        /**
+         * Bind only the view of an alarm item named by a payload.
+         * @param alarmItem the current alarm row we are binding.
+         * @param payload what changed, one of the PAYLOAD constants or a DayOfWeek.
+         */
+        private void bindPayload(AlarmItem alarmItem, Object payload){
+            if(payload instanceof DayOfWeek){
+                DayOfWeek dayOfWeek = (DayOfWeek) payload;
+                toggleButtons.get(dayOfWeek.getValue() - 1)
+                        .setChecked(alarmItem.hasDayOfWeek(dayOfWeek));
+            }
+            else if(payload == PAYLOAD_ACTIVE){
+                alarmActiveSwitch.setChecked(alarmItem.isActive());
+            }
+            else if(payload == PAYLOAD_EXPANDED){
+                bindExpanded(alarmItem);
+            }
+            else if(payload == PAYLOAD_SOUND){
+                alarmSoundPicker.setText(alarmItem.getAlarmSoundName());
+            }
+            else {
+                bind(alarmItem);
+            }
+        }
+
+        /**
+         * Show the day of week toggles and sound picker if the alarm item is expanded.
+         * @param alarmItem the current alarm row we are binding.
+         */
+        private void bindExpanded(AlarmItem alarmItem){
+            boolean expanded = expandedAlarmTimes.contains(alarmItem.getMinuteOfDay());
+            subItem.setVisibility(expanded ? View.VISIBLE : View.GONE);
+        }
+
         /**
          * Helper method to get list of all toggle buttons used for day of week toggle.
          * @param itemView view we use to find the needed UI elements
@@ -315,9 +399,8 @@ public class AlarmListAdapter extends
          * @param alarmItem AlarmItem to bind the toggle buttons to.
          */
         private void bindDayOfWeekToggle(AlarmItem alarmItem) {
-            HashSet<DayOfWeek> daysOfWeekHashSet = alarmItem.getDaysOfWeek();
             for (int i = 0; i < toggleButtons.size(); i++) {
-                toggleButtons.get(i).setChecked(daysOfWeekHashSet.contains(DayOfWeek.of(i + 1)));
+                toggleButtons.get(i).setChecked(alarmItem.hasDayOfWeek(DayOfWeek.of(i + 1)));
             }
         }
 
@@ -331,21 +414,34 @@ public class AlarmListAdapter extends
             MaterialButton btn = alarmViewHolder.
                     itemView.findViewById(R.id.alarm_delete_button);
             btn.setOnClickListener(l -> {
-                deleteAlarmItem(alarmViewHolder.getBindingAdapterPosition());
+                int position = alarmViewHolder.getBindingAdapterPosition();
+                // the row may already be on its way out of the list.
+                if(position != RecyclerView.NO_POSITION)
+                    deleteAlarmItem(position);
             });
             // set expanded listener
             alarmViewHolder.itemView.setOnClickListener(l -> {
                 int position = alarmViewHolder.getBindingAdapterPosition();
-                AlarmItem alarmItem = alarmItems.get(position);
-                alarmItem.setExpanded(!alarmItem.isExpanded());
-                notifyItemChanged(position);
+                if(position == RecyclerView.NO_POSITION)
+                    return;
+                Integer alarmTime = getItem(position).getMinuteOfDay();
+                if(!expandedAlarmTimes.remove(alarmTime))
+                    expandedAlarmTimes.add(alarmTime);
+                // expanded is not part of the alarm item, so is not seen by DiffUtil.
+                notifyItemChanged(position, PAYLOAD_EXPANDED);
             });
             // set active switch
             alarmViewHolder.alarmActiveSwitch.setOnClickListener(l -> {
                 int position = alarmViewHolder.getBindingAdapterPosition();
-                AlarmItem alarmItem = alarmItems.get(position);
+                if(position == RecyclerView.NO_POSITION)
+                    return;
+                AlarmItem alarmItem = getAlarmItem(position);
+                // already deleted, the list shown has not caught up yet.
+                if(alarmItem == null)
+                    return;
                 alarmItem.setActive(!alarmItem.isActive());
-                notifyItemChanged(position);
+                saveAlarmItem(alarmItem);
+                submitAlarms(null);
             });
 
             // assign toggle button listeners for each DayOfWeek.
@@ -354,14 +450,20 @@ public class AlarmListAdapter extends
                 final int finalIndex = i;
                 toggleButton.setOnClickListener(l -> {
                     int position = alarmViewHolder.getBindingAdapterPosition();
-                    AlarmItem alarmItem = alarmItems.get(position);
+                    if(position == RecyclerView.NO_POSITION)
+                        return;
+                    AlarmItem alarmItem = getAlarmItem(position);
+                    if(alarmItem == null)
+                        return;
+                    DayOfWeek dayOfWeek = DayOfWeek.of(finalIndex);
                     if(toggleButton.isChecked()){
-                        alarmItem.addDayOfWeek(DayOfWeek.of(finalIndex));
+                        alarmItem.addDayOfWeek(dayOfWeek);
                     }
                     else{
-                        alarmItem.removeDayOfWeek(DayOfWeek.of(finalIndex));
+                        alarmItem.removeDayOfWeek(dayOfWeek);
                     }
-                    notifyItemChanged(position);
+                    saveAlarmItem(alarmItem);
+                    submitAlarms(null);
                 });
                 i++;
             }
@@ -369,7 +471,10 @@ public class AlarmListAdapter extends
             // As we have to trigger this intent from the Main Activity, we send a broadcast
             // to MainActivity's broadcast receivers.
             alarmSoundPicker.setOnClickListener(l -> {
-                MainActivity.currentItemIndexSoundPick = alarmViewHolder.getBindingAdapterPosition();
+                int position = alarmViewHolder.getBindingAdapterPosition();
+                if(position == RecyclerView.NO_POSITION)
+                    return;
+                MainActivity.currentAlarmTimeSoundPick = getItem(position).getMinuteOfDay();
 
                 Intent alarmSoundIntent = new Intent(RingtoneManager.ACTION_RINGTONE_PICKER);
                 alarmSoundIntent.putExtra(RingtoneManager.EXTRA_RINGTONE_DEFAULT_URI,
@@ -1,15 +1,22 @@
 package com.maxkernchen.walkingalarm;
 
+import android.app.AlarmManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
+import android.text.format.DateFormat;
+import android.util.Log;
 import android.widget.Toast;
 import androidx.core.app.NotificationManagerCompat;
 
+import java.util.Locale;
+
 /**
  * AlarmReceiver class which listens to broadcast coming from AlarmService
  * and then sends them to classes with more UI exposure to change elements in real time.
- * Also is used to trigger the alarm service on phone reboot.
+ * Also starts the alarm service once the alarm armed by AlarmScheduler fires, prepares it
+ * shortly before, and re-arms it on phone reboot or when the system time changes.
  * @version 1.4
  * @author Max Kernchen
  */
@@ -18,6 +25,8 @@ import androidx.core.app.NotificationManagerCompat;
 public class AlarmReceiver extends BroadcastReceiver {
     // log tag used only for debugging
     private static final String logTag = "AlarmReceiver";
+    // name of the thread the next alarm is prepared on.
+    private static final String PRE_ARM_THREAD_NAME = "PreArmAlarm";
 
     /**
      * Overridden onReceive which allows us to call specific methods based on Intent Actions
@@ -27,51 +36,57 @@ public class AlarmReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         switch (intent.getAction()) {
-            // once the phone is rebooted we want to start the alarm service.
-            case Intent.ACTION_BOOT_COMPLETED: {
-                context.startForegroundService(new Intent(context, AlarmService.class));
+            // once the phone is rebooted, the app is updated or the time changes any armed alarm
+            // is lost or wrong, so arm the next alarm again.
+            case Intent.ACTION_BOOT_COMPLETED:
+            case Intent.ACTION_MY_PACKAGE_REPLACED:
+            case Intent.ACTION_TIME_CHANGED:
+            case Intent.ACTION_TIMEZONE_CHANGED:
+            // no alarm is armed while exact alarms are not allowed, so arm it once they are.
+            case AlarmManager.ACTION_SCHEDULE_EXACT_ALARM_PERMISSION_STATE_CHANGED: {
+                AlarmScheduler.scheduleNextAlarm(context);
                 break;
             }
-            // action for triggered the full screen alarm notification.
-            case AlarmFullScreen.FULL_SCREEN_ACTION_ALARM: {
-                int steps =
-                        intent.getIntExtra(AlarmFullScreen.INTENT_EXTRA_STEPS, -1);
-                String alarmName =
-                        intent.getStringExtra(AlarmFullScreen.INTENT_EXTRA_ALARM_NAME);
-                String alarmChannelID =
-                        intent.getStringExtra(AlarmFullScreen.INTENT_EXTRA_ALARM_CHANNEL_ID);
-
-                AlarmFullScreen.createFullScreenNotification(context, alarmName,
-                        alarmChannelID, steps);
-
-                AlarmService.notificationTriggered = true;
+            // the alarm armed by the AlarmScheduler is due, start the service to run it.
+            case AlarmScheduler.FIRE_ALARM_ACTION: {
+                long fireTime = intent.getLongExtra(AlarmScheduler.INTENT_EXTRA_FIRE_TIME, 0);
+                Intent serviceIntent = new Intent(AlarmScheduler.FIRE_ALARM_ACTION, null,
+                        context, AlarmService.class);
+                serviceIntent.putExtra(AlarmScheduler.INTENT_EXTRA_FIRE_TIME, fireTime);
+                // the AlarmService times the session from here, if it starts a new one.
+                serviceIntent.putExtra(AlarmScheduler.INTENT_EXTRA_RECEIVED_REALTIME,
+                        SystemClock.elapsedRealtime());
+                serviceIntent.putExtra(AlarmScheduler.INTENT_EXTRA_TEST_ALARM,
+                        intent.getBooleanExtra(AlarmScheduler.INTENT_EXTRA_TEST_ALARM, false));
+                context.startForegroundService(serviceIntent);
                 break;
             }
-            // action which update the steps remaining to walk in the full screen activity
-            case AlarmFullScreen.WALK_ACTION: {
-                Intent in = new Intent(AlarmFullScreen.WALK_ACTION);
-                int steps = intent.getIntExtra(AlarmFullScreen.INTENT_EXTRA_STEPS, -1);
-                in.putExtra(AlarmFullScreen.INTENT_EXTRA_STEPS, steps);
-                context.sendBroadcast(in);
+            // the next alarm is due shortly, prepare it off the main thread.
+            case AlarmScheduler.PRE_ARM_ALARM_ACTION: {
+                long fireTime = intent.getLongExtra(AlarmScheduler.INTENT_EXTRA_FIRE_TIME, 0);
+                AlarmLabels.configure(DateFormat.is24HourFormat(context), Locale.getDefault());
+                PendingResult pendingResult = goAsync();
+                new Thread(() -> {
+                    try {
+                        PreparedAlarm.prepare(context, fireTime);
+                    } catch (RuntimeException e) {
+                        Log.e(logTag, "Could not prepare alarm", e);
+                    } finally {
+                        pendingResult.finish();
+                    }
+                }, PRE_ARM_THREAD_NAME).start();
                 break;
             }
             // Action to dismiss the alarm. If the AlarmFullScreen activity has not yet been
             // created, then just cancel it here rather than in the AlarmFullScreen class.
             case AlarmFullScreen.DISMISS_ALARM_ACTION: {
-                String alarmName = intent.getStringExtra(
-                        AlarmFullScreen.INTENT_EXTRA_ALARM_NAME);
-
                 if (AlarmFullScreen.isCreated) {
-                    Intent in = new Intent(AlarmFullScreen.DISMISS_ALARM_ACTION);
-                    in.putExtra(AlarmFullScreen.INTENT_EXTRA_ALARM_NAME, alarmName);
-                    context.sendBroadcast(in);
+                    context.sendBroadcast(new Intent(AlarmFullScreen.DISMISS_ALARM_ACTION));
                 }
                 else {
-                    NotificationManagerCompat notificationManager =
-                            NotificationManagerCompat.from(context);
-                    notificationManager.cancel(AlarmFullScreen.NOTIFICATION_ID_ALARM);
-                    notificationManager.deleteNotificationChannel
-                            (AlarmFullScreen.CHANNEL_ID + alarmName);
+                    // the channel is kept in the NotificationChannelPool for the next alarm.
+                    NotificationManagerCompat.from(context)
+                            .cancel(AlarmFullScreen.NOTIFICATION_ID_ALARM);
                 }
                 break;
             }
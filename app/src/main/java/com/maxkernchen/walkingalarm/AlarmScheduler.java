@@ -0,0 +1,240 @@
+package com.maxkernchen.walkingalarm;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * AlarmScheduler class works out the next time any stored AlarmItem should fire and arms a single
+ * AlarmManager alarm clock for it. Once that alarm fires AlarmReceiver starts the AlarmService,
+ * which runs the alarm and then calls back in here to arm the following one.
+ * A second pre-arm alarm is armed PreparedAlarm.PRE_ARM_LEAD_MS before it, so the work of
+ * showing the alarm is done ahead of time.
+ * This replaces the old approach of holding a wake lock and polling every alarm every 3 seconds.
+ *
+ * Only an exact alarm lets the AlarmReceiver start the AlarmService from the background, so if
+ * the user has revoked exact alarms no alarm is armed, rather than an inexact one which would
+ * fire but fail to start the service. MainActivity sends the user to grant exact alarms, and
+ * the AlarmReceiver arms the next alarm again once they are.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class AlarmScheduler {
+
+    /**
+     * public Static String for the action sent by AlarmManager once the next alarm is due.
+     */
+    public static final String FIRE_ALARM_ACTION = "AlarmActionFire";
+    /**
+     * public Static String intent extra that stores the time in millis the alarm was armed for.
+     */
+    public static final String INTENT_EXTRA_FIRE_TIME = "AlarmFireTimeExtra";
+    /**
+     * public Static String for the action sent by AlarmManager shortly before the next alarm.
+     */
+    public static final String PRE_ARM_ALARM_ACTION = "AlarmActionPreArm";
+    /**
+     * public Static String intent extra that is true for a test alarm, which is not stored.
+     */
+    public static final String INTENT_EXTRA_TEST_ALARM = "AlarmTestExtra";
+    /**
+     * public Static String intent extra that stores the elapsed realtime the AlarmReceiver got
+     * the alarm.
+     */
+    public static final String INTENT_EXTRA_RECEIVED_REALTIME = "AlarmReceivedRealtimeExtra";
+    // request code for the pending intent which fires the next alarm
+    private static final int FIRE_ALARM_REQUEST_CODE = 3;
+    // request code for the pending intent shown by the system when the user taps the alarm clock
+    private static final int SHOW_ALARM_REQUEST_CODE = 4;
+    // request code for the pending intent which prepares the next alarm
+    private static final int PRE_ARM_ALARM_REQUEST_CODE = 5;
+    // request code for the pending intent which fires a test alarm
+    private static final int TEST_ALARM_REQUEST_CODE = 6;
+    // log tag for logging.
+    private static final String logTag = "AlarmScheduler";
+
+    /**
+     * Private constructor as this class only has static helpers.
+     */
+    private AlarmScheduler(){
+    }
+
+    /**
+     * Arm the AlarmManager for the next time any of the stored alarm items should fire.
+     * If no alarm is active any previously armed alarm is cancelled. Only one alarm is ever armed
+     * so calling this after every add, edit, toggle or delete is cheap and keeps it current.
+     * @param context context used to find the AlarmStore and AlarmManager.
+     */
+    public static void scheduleNextAlarm(Context context){
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if(alarmManager == null)
+            return;
+
+        List<AlarmStore.UpcomingAlarm> nextAlarms = AlarmStore.getInstance(context)
+                .getNextAlarms(System.currentTimeMillis(), 1);
+        if(nextAlarms.isEmpty()){
+            alarmManager.cancel(getFireAlarmPendingIntent(context, AlarmIndex.NO_ALARM));
+            alarmManager.cancel(getPreArmPendingIntent(context, AlarmIndex.NO_ALARM));
+            return;
+        }
+        if(!canScheduleExactAlarms(alarmManager)){
+            // an inexact alarm could not start the AlarmService, so arm nothing until the user
+            // grants exact alarms again.
+            Log.w(logTag, "Exact alarms are not allowed, the next alarm is not armed");
+            alarmManager.cancel(getFireAlarmPendingIntent(context, AlarmIndex.NO_ALARM));
+            alarmManager.cancel(getPreArmPendingIntent(context, AlarmIndex.NO_ALARM));
+            return;
+        }
+        long nextFireTime = nextAlarms.get(0).getFireTimeMillis();
+        PendingIntent fireIntent = getFireAlarmPendingIntent(context, nextFireTime);
+        schedulePreArm(context, alarmManager, nextFireTime);
+
+        // alarm clocks are always exact and are allowed to start a foreground service.
+        AlarmManager.AlarmClockInfo alarmClockInfo =
+                new AlarmManager.AlarmClockInfo(nextFireTime, getShowAlarmPendingIntent(context));
+        alarmManager.setAlarmClock(alarmClockInfo, fireIntent);
+    }
+
+    /**
+     * Fire a test alarm now, through the AlarmManager like a real alarm, so the whole path to
+     * ringing runs and its latency is reported by the AlarmLatencyTracker. The next stored alarm
+     * stays armed. If exact alarms are not allowed the test alarm is sent straight to the
+     * AlarmReceiver, which can start the AlarmService as the app is in the foreground.
+     * @param context context used to find the AlarmManager.
+     */
+    public static void scheduleTestAlarm(Context context){
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if(alarmManager == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        Intent intent = new Intent(FIRE_ALARM_ACTION, null, context, AlarmReceiver.class);
+        intent.putExtra(INTENT_EXTRA_FIRE_TIME, now);
+        intent.putExtra(INTENT_EXTRA_TEST_ALARM, true);
+        int pendingFlag;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+        {
+            pendingFlag = PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT;
+        }
+        else {
+            pendingFlag =  PendingIntent.FLAG_UPDATE_CURRENT;
+        }
+        PendingIntent testIntent = PendingIntent.getBroadcast(context, TEST_ALARM_REQUEST_CODE,
+                intent, pendingFlag);
+        if(canScheduleExactAlarms(alarmManager))
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, now, testIntent);
+        else
+            context.sendBroadcast(intent);
+    }
+
+    /**
+     * Arm the pre-arm alarm PreparedAlarm.PRE_ARM_LEAD_MS before the next alarm. If the next
+     * alarm is sooner than that there is no time to prepare it, so the pre-arm alarm is
+     * cancelled and the AlarmService does all the work once it fires.
+     * @param context context used to build the pending intent.
+     * @param alarmManager the AlarmManager to arm.
+     * @param nextFireTime time in millis the next alarm fires.
+     */
+    private static void schedulePreArm(Context context, AlarmManager alarmManager,
+                                       long nextFireTime){
+        PendingIntent preArmIntent = getPreArmPendingIntent(context, nextFireTime);
+        long preArmTime = nextFireTime - PreparedAlarm.PRE_ARM_LEAD_MS;
+        if(preArmTime <= System.currentTimeMillis()){
+            alarmManager.cancel(preArmIntent);
+            return;
+        }
+        // the pre-arm alarm is not shown to the user, so does not need to be an alarm clock.
+        if(canScheduleExactAlarms(alarmManager))
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, preArmTime,
+                    preArmIntent);
+        else
+            alarmManager.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, preArmTime, preArmIntent);
+    }
+
+    /**
+     * Exact alarms need to be allowed by the user on API 31 and 32, no alarm is armed without
+     * them.
+     * @param context context used to find the AlarmManager.
+     * @return true if exact alarms can be scheduled.
+     */
+    public static boolean canScheduleExactAlarms(Context context){
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        return alarmManager != null && canScheduleExactAlarms(alarmManager);
+    }
+
+    /**
+     * Exact alarms need to be allowed by the user from API 31 onwards.
+     * @param alarmManager the AlarmManager to check.
+     * @return true if exact alarms can be scheduled.
+     */
+    private static boolean canScheduleExactAlarms(AlarmManager alarmManager){
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+            return alarmManager.canScheduleExactAlarms();
+        return true;
+    }
+
+    /**
+     * Build the pending intent which is sent to AlarmReceiver once the next alarm is due.
+     * @param context the context to build the intent from.
+     * @param fireTime the time the alarm is armed for, sent along as an extra.
+     * @return the PendingIntent to arm.
+     */
+    private static PendingIntent getFireAlarmPendingIntent(Context context, long fireTime){
+        Intent intent = new Intent(FIRE_ALARM_ACTION, null, context, AlarmReceiver.class);
+        intent.putExtra(INTENT_EXTRA_FIRE_TIME, fireTime);
+        int pendingFlag;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+        {
+            pendingFlag = PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT;
+        }
+        else {
+            pendingFlag =  PendingIntent.FLAG_UPDATE_CURRENT;
+        }
+        return PendingIntent.getBroadcast(context, FIRE_ALARM_REQUEST_CODE, intent, pendingFlag);
+    }
+
+    /**
+     * Build the pending intent which is sent to AlarmReceiver shortly before the next alarm.
+     * @param context the context to build the intent from.
+     * @param fireTime the time the alarm to prepare is armed for, sent along as an extra.
+     * @return the PendingIntent to arm.
+     */
+    private static PendingIntent getPreArmPendingIntent(Context context, long fireTime){
+        Intent intent = new Intent(PRE_ARM_ALARM_ACTION, null, context, AlarmReceiver.class);
+        intent.putExtra(INTENT_EXTRA_FIRE_TIME, fireTime);
+        int pendingFlag;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+        {
+            pendingFlag = PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT;
+        }
+        else {
+            pendingFlag =  PendingIntent.FLAG_UPDATE_CURRENT;
+        }
+        return PendingIntent.getBroadcast(context, PRE_ARM_ALARM_REQUEST_CODE, intent,
+                pendingFlag);
+    }
+
+    /**
+     * Build the pending intent the system uses when the user taps on the upcoming alarm clock.
+     * @param context the context to build the intent from.
+     * @return PendingIntent which opens the MainActivity.
+     */
+    private static PendingIntent getShowAlarmPendingIntent(Context context){
+        Intent intent = new Intent(context, MainActivity.class);
+        int pendingFlag;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+        {
+            pendingFlag = PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT;
+        }
+        else {
+            pendingFlag =  PendingIntent.FLAG_UPDATE_CURRENT;
+        }
+        return PendingIntent.getActivity(context, SHOW_ALARM_REQUEST_CODE, intent, pendingFlag);
+    }
+}
@@ -1,6 +1,5 @@
 package com.maxkernchen.walkingalarm;
 
-import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -9,59 +8,58 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.media.AudioAttributes;
-import android.net.Uri;
+import android.content.pm.PackageManager;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
+import android.text.format.DateFormat;
+import android.util.Log;
 import android.widget.Toast;
 
+import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
-import androidx.core.app.NotificationManagerCompat;
 import androidx.preference.PreferenceManager;
 
-import com.google.android.gms.auth.api.signin.GoogleSignIn;
-import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
-import com.google.android.gms.fitness.Fitness;
-import com.google.android.gms.fitness.data.DataType;
-import com.google.android.gms.fitness.data.Field;
-
-import java.util.Calendar;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalTime;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 /**
- * AlarmService class runs continuously  in the background to check for new alarms to be triggered.
- * Once they are triggered it calls google cloud API for current google fit steps.
+ * AlarmService class is started by AlarmReceiver once the alarm armed by AlarmScheduler fires.
+ * Once an alarm is triggered it counts steps from the StepSource chosen in settings, either
+ * Google Fit history, steps pushed live by Google Fit, or the phone's own step sensor.
  * Requires wake lock when testing with Google Pixel 4a, foreground service does eventually
- * not execute due to doze mode. Wake Lock keeps the service running every polling interval.
+ * not execute due to doze mode. Wake Lock is only held while an alarm session is running.
  * @version 1.4
  * @author Max Kernchen
  */
 public class AlarmService extends Service {
 
-    // shared preferences used to store AlarmItems
-    private SharedPreferences prefs;
     // shared preference used to store settings.
     private SharedPreferences settingsPref;
-    // current steps that the user has walked.
-    private int currentSteps;
-    // bool to check if any error occurred during the current alarm.
-    private boolean errorFoundDuringAlarm = false;
-    // int to store the amount of steps right when the alarm is triggered.
-    private int startingSteps = 0;
-    // Calendar used to check if the we find no steps after a certain amount of time
-    private Calendar alarmStartMonitor;
-    // Calendar used to check if we find some steps but not all to dismiss.
-    // This is used to eventually dismiss the alarm so it does not hang forever.
-    private Calendar alarmTimeOutMonitor;
-    // how often we check if a new alarm needs to be triggered in milliseconds
+    // where steps are counted from for the current alarm.
+    private StepSource stepSource;
+    // decides when the current alarm is dismissed, from the steps counted by stepSource.
+    private DismissalSession dismissalSession;
+    // decides how long to wait between checks of the dismissalSession.
+    private StepPoller stepPoller;
+    // runs every stage of the alarm session on one thread, shut down once the session ends.
+    private volatile SupervisedScheduler sessionScheduler;
+    // name of the thread the alarm session runs on.
+    private static final String SESSION_THREAD_NAME = "AlarmSession";
+    // how long to wait in ms for an error message to reach the user before dismissing.
     private static final int POLLING_FREQUENCY_MS = 3000;
-    // how long to wait in ms for GOOGLE FIT API call to complete
-    private static final int GOOGLE_FIT_FETCH_TIMEOUT = 10000;
-    // how often we call the google fit API to check for current steps.
-    private static final int STEPS_POLLING_FREQUENCY_MS = 500;
+    // upper bound in ms on how long a single alarm session may hold the wake lock.
+    private static final long WAKE_LOCK_TIMEOUT_MS = 10 * 60 * 1000L;
     // Extra static string for the extra to see a toast to the AlarmReceiver.
     public static final String TOAST_EXTRA_ALARM_SERVICE = "ToastExtraMainActivity";
     // Action which will display toast message from AlarmReceiver.
@@ -70,17 +68,18 @@ public class AlarmService extends Service {
     public final static String WALKING_ALARM_RUNNING = "Walking Alarm is Running in the Background";
     // log tag for logging.
     private static final String logTag = "AlarmService";
+    // id of the current alarm.
+    private long currentAlarmId;
     // current name of the alarm.
     private String currentAlarmName = "";
+    // time in millis the current alarm was armed for by the AlarmScheduler.
+    private long alarmFireTime;
+    // true if the current alarm is a test alarm, which is not stored and reports its latency.
+    private boolean testAlarm;
+    // records how long each stage of the alarm session takes.
+    private AlarmLatencyTracker latencyTracker;
     // current alarm sound to be played
     private String currentAlarmSoundUri = "";
-    // public boolean which checks if we have started the notification.
-    public static boolean notificationTriggered = false;
-    // private boolean that is used if we found the notification is running but has not timed
-    // out yet (no steps found after SECONDS_TO_WAIT_FOR_STEPS).
-    private boolean foundNotification = false;
-    // static bool that is used to check if service is running
-    public static boolean isRunning = false;
     // private wake lock to prevent service from being slept during doze mode.
     private PowerManager.WakeLock wakeLock;
     // wake lock tag for AlarmService
@@ -89,125 +88,327 @@ public class AlarmService extends Service {
     private static final String NOTIFICATION_CHANNEL_ID = "AlarmServiceNotificationChannel";
     // notification channel name for the service notification
     private static final String NOTIFICATION_CHANNEL_NAME = "AlarmServiceNotificationName";
-    // current unique id we will use for notification channel id, this will be a GUID
-    // to allow us to change the sound/vibration attributes when creating the notification
+    // notification channel id for the latency report of a test alarm
+    private static final String LATENCY_CHANNEL_ID = "AlarmLatencyNotificationChannel";
+    // notification channel name for the latency report of a test alarm
+    private static final String LATENCY_CHANNEL_NAME = "AlarmLatencyNotificationName";
+    // notification id for the latency report of a test alarm
+    private static final int NOTIFICATION_ID_LATENCY = 3;
+    // id of the notification channel from the NotificationChannelPool the current alarm rings on,
+    // matching its sound and vibration settings.
     private String currentAlarmChannelID;
+    // the notification of the current alarm, built once per session so a restart of showAlarm
+    // does not take the PreparedAlarm again. null until built.
+    private Notification alarmNotification;
+    // true once the notification of the current alarm is posted, so a restart does not post it
+    // again.
+    private boolean alarmNotificationPosted;
+    // true once the user has been told how the current session ended, so a restarted stage does
+    // not toast again.
+    private boolean sessionResultToasted;
+    // binder handed to components which bind to the service.
+    private final IBinder binder = new LocalBinder();
+    // listeners told of the steps remaining, called on the main thread.
+    private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<>();
+    // steps remaining last published to the listeners, -1 if no session has published yet.
+    private final AtomicInteger stepsRemaining = new AtomicInteger(-1);
+    // handler used to call the listeners on the main thread.
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Listener told of the progress of the alarm session while it is bound to the service.
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the main thread when the steps remaining to dismiss the alarm change.
+         * @param stepsRemaining the steps remaining to dismiss the alarm.
+         */
+        void onStepsRemainingChanged(int stepsRemaining);
+    }
+
+    /**
+     * Binder returned from onBind, gives bound components in this process the service.
+     */
+    public class LocalBinder extends Binder {
+        /**
+         * @return the AlarmService this binder belongs to.
+         */
+        public AlarmService getService(){
+            return AlarmService.this;
+        }
+    }
 
     /**
      * On start of the service make sure we start based upon API level.
      * Newer API levels require a notification to show the app is running.
-     * @param intent - intent to start, from Alarm Receiver or Main Activity
+     * The service is only started by AlarmReceiver once the AlarmScheduler alarm fires, it then
+     * holds a wake lock for the length of the alarm session and stops itself once it is done.
+     * @param intent - intent to start, from Alarm Receiver
      * @param flags any flags sent
      * @param startId the unique id for this start request
-     * @return START_STICKY - meaning the service will be restarted if it was stopped due to low
-     * memory. Once additional memory has been found.
+     * @return START_NOT_STICKY - the AlarmScheduler will start the service again for the next
+     * alarm, so there is no need for the system to restart it.
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        isRunning = true;
-        this.prefs = getSharedPreferences(getString(R.string.shared_prefs_key),
-                Context.MODE_PRIVATE);
+        Notification notification = setUpNotificationChannels();
+        startForeground(2, notification);
+        // an alarm session is already running, it will arm the next alarm once it finishes.
+        if(sessionScheduler != null && !sessionScheduler.isShutdown())
+            return START_NOT_STICKY;
+
+        // check the alarm against the time it was armed for, in case it was delivered late.
+        alarmFireTime = System.currentTimeMillis();
+        long receivedRealtime = SystemClock.elapsedRealtime();
+        testAlarm = false;
+        if(intent != null) {
+            alarmFireTime = intent.getLongExtra(AlarmScheduler.INTENT_EXTRA_FIRE_TIME,
+                    alarmFireTime);
+            receivedRealtime = intent.getLongExtra(AlarmScheduler.INTENT_EXTRA_RECEIVED_REALTIME,
+                    receivedRealtime);
+            testAlarm = intent.getBooleanExtra(AlarmScheduler.INTENT_EXTRA_TEST_ALARM, false);
+        }
+        // only a new session is tracked, an alarm fired while one runs is not.
+        latencyTracker = AlarmLatencyTracker.getInstance(this);
+        latencyTracker.beginSession(alarmFireTime, receivedRealtime);
+        latencyTracker.mark(AlarmLatencyTracker.Stage.SERVICE);
         this.settingsPref = PreferenceManager.
                 getDefaultSharedPreferences(getApplicationContext());
+        // build the alarm name formatter here on the main thread, not on the session thread.
+        AlarmLabels.configure(DateFormat.is24HourFormat(this), Locale.getDefault());
 
         PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
         wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG_ALARM_SERVICE);
-        wakeLock.acquire();
+        wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
 
-        Notification notification = setUpNotificationChannels();
-        startForeground(2, notification);
-        startBackGroundThread();
-        return START_STICKY;
+        startAlarmSession();
+        return START_NOT_STICKY;
     }
 
     /**
-     * onBind is not implemented as instead of creating comm channels, I send broadcast intents
-     * to AlarmReceiver. Also the service does not require any external class calls once it is
-     * started.
+     * onBind returns a LocalBinder, which the AlarmFullScreen activity uses to listen to the
+     * progress of the alarm session directly, rather than through broadcasts.
      * @param intent intent on binding
-     * @return nothing currently
+     * @return the LocalBinder for this service.
      */
     @Override
     public IBinder onBind(Intent intent) {
-        throw new UnsupportedOperationException("Not yet implemented");
+        return binder;
     }
 
     /**
-     * Overridden onDestroy is only used for API < 26.
-     * As those API levels require us to stop a service to full dismiss a notification.
-     * Service is started about again about 5 seconds later.
+     * Add a listener to be told of the steps remaining, it is called at once with the current
+     * steps remaining if a session has published any. Must be called on the main thread.
+     * @param listener the listener to add.
+     */
+    public void addProgressListener(ProgressListener listener){
+        progressListeners.add(listener);
+        int steps = stepsRemaining.get();
+        if(steps >= 0)
+            listener.onStepsRemainingChanged(steps);
+    }
+
+    /**
+     * Called on the main thread by the AlarmFullScreen once it is showing the alarm, the wait for
+     * steps starts now rather than once NOTIFICATION_DELAY_MS has passed.
+     */
+    public void onAlarmShown(){
+        SupervisedScheduler scheduler = sessionScheduler;
+        if(scheduler != null)
+            scheduler.execute(this::startDismissalSession);
+    }
+
+    /**
+     * Remove a listener added by addProgressListener.
+     * @param listener the listener to remove.
+     */
+    public void removeProgressListener(ProgressListener listener){
+        progressListeners.remove(listener);
+    }
+
+    /**
+     * Overridden onDestroy which stops the alarm session and releases the wake lock if the
+     * session did not already.
      */
     @Override
     public void onDestroy() {
         super.onDestroy();
-        wakeLock.release();
+        if (sessionScheduler != null)
+            sessionScheduler.shutdownNow();
+        if (wakeLock != null && wakeLock.isHeld())
+            wakeLock.release();
         NotificationManager nMgr = (NotificationManager)this.
                 getSystemService(Context.NOTIFICATION_SERVICE);
         nMgr.cancel(AlarmFullScreen.NOTIFICATION_ID_ALARM);
-        isRunning = false;
+        mainHandler.removeCallbacksAndMessages(null);
+        progressListeners.clear();
     }
 
     /**
-     * Helper method which will start our background thread that continuously checks for
-     * any alarm that need to be triggered. Currently checks every 3 seconds for a new alarm, to
-     * prevent battery drain.
+     * Helper method which starts the alarm session for the alarm which is due now. The session
+     * runs as stages on the SupervisedScheduler, each stage is scheduled or chained from the
+     * last so the thread never sleeps or waits on a StepSource. A stage which fails is restarted
+     * with back off, and if it keeps failing the session is ended. Stages with side effects only
+     * have them once per session, so a restarted stage does not repeat them.
+     * Once the alarm is dismissed, or if no alarm was due, the next alarm is armed by the
+     * AlarmScheduler and the service is stopped, so nothing runs between alarms.
      */
-    private void startBackGroundThread(){
-        new Thread(new Runnable() {
-            public void run() {
-                try {
-                    while (wakeLock.isHeld()) {
-                        // get the alarm items using static preferences
-                        List<AlarmItem> items = AlarmListAdapter.getAlarmItemsStatic(prefs);
-                        AlarmItem isAlarm = AlarmListAdapter.triggerAlarmStatic(items, prefs);
-
-                        if (isAlarm != null) {
-                            currentAlarmName = isAlarm.getAlarmName();
-                            // use random UUID for channel id, this allows us to
-                            // apply changes to a repeating alarm if the sound or vibration settings
-                            // were changed. 
-                            currentAlarmChannelID = java.util.UUID.randomUUID().toString();
-                            currentAlarmSoundUri = isAlarm.getAlarmSoundUri();
-                            createAlarmChannelSound();
-                            toFullScreenAlarm(getStepsToDismiss());
-                            // wait some time for notification to reach user.
-                            sleepMainThread(POLLING_FREQUENCY_MS);
-
-                            startingSteps = getCurrentSteps();
-                            while (stepsRemainingToDismiss() && !errorFoundDuringAlarm) {
-                                sleepMainThread(STEPS_POLLING_FREQUENCY_MS);
-                            }
-
-                            // only dismiss for non-errors, error message will pause before exiting.
-                            if (!errorFoundDuringAlarm) {
-                                // if full screen activity has not been created, then just
-                                // print a toast to let user know the alarm has been dismissed.
-                                if (!AlarmFullScreen.isCreated) {
-                                    stepsDismissedToast(getString(R.string.alarm_dismissed_toast));
-                                }
-                                dismissAlarm();
-                            }
-                            errorFoundDuringAlarm = false;
-                            currentAlarmName = "";
-                            notificationTriggered = false;
-                            foundNotification = false;
-
-                        }
-                        sleepMainThread(POLLING_FREQUENCY_MS);
-
-                    }
-                    if (!wakeLock.isHeld()) {
-                        wakeLock.acquire();
-                        run();
-                    }
-                } catch (Exception e) {
-                    if (!wakeLock.isHeld()) {
-                        wakeLock.acquire();
-                    }
-                    run();
-                }
+    private void startAlarmSession(){
+        alarmNotification = null;
+        alarmNotificationPosted = false;
+        sessionResultToasted = false;
+        sessionScheduler = new SupervisedScheduler(SESSION_THREAD_NAME, lastFailure -> {
+            dismissAlarm();
+            finishAlarmSession();
+        });
+        sessionScheduler.execute(this::findDueAlarm);
+    }
+
+    /**
+     * Helper method which finds the alarm due now with an indexed query on the AlarmStore, and
+     * records it as fired. Kept apart from showing the alarm, so if showing it fails and is
+     * restarted the alarm is not looked up again, as it would already be recorded as fired.
+     * A test alarm is not stored, so one is made for the current time instead.
+     */
+    private void findDueAlarm(){
+        AlarmItem isAlarm;
+        if (testAlarm) {
+            LocalTime now = LocalTime.now();
+            isAlarm = new AlarmItem(now.getHour(), now.getMinute());
+        }
+        else {
+            try {
+                isAlarm = AlarmListAdapter.triggerAlarmStatic(
+                        AlarmStore.getInstance(getApplicationContext()),
+                        TriggerJournal.getInstance(getApplicationContext().getFilesDir()),
+                        alarmFireTime);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (isAlarm == null) {
+            latencyTracker.cancelSession();
+            finishAlarmSession();
+            return;
+        }
+        latencyTracker.mark(AlarmLatencyTracker.Stage.ALARM_FOUND);
+        currentAlarmId = isAlarm.getId();
+        currentAlarmName = isAlarm.getAlarmName();
+        currentAlarmSoundUri = isAlarm.getAlarmSoundUri();
+        sessionScheduler.execute(this::showAlarm);
+    }
+
+    /**
+     * Helper method which creates the DismissalSession and shows the alarm notification.
+     * Counting steps, and the wait for them, starts once the AlarmFullScreen shows the alarm, or
+     * after NOTIFICATION_DELAY_MS at the latest, as while the phone is in use only a heads up
+     * notification is shown and the AlarmFullScreen is not created until it is tapped.
+     * If the alarm was prepared ahead of time by PreparedAlarm its notification is posted as
+     * is, otherwise the notification is built now.
+     * If this stage is restarted the notification built or taken by the failed attempt is
+     * reused and only posted once, and the StepSource the failed attempt made is stopped.
+     */
+    private void showAlarm(){
+        boolean vibrate = isVibrationEnabled(settingsPref);
+        int stepsToDismiss = getStepsToDismiss(settingsPref);
+        if (alarmNotification == null) {
+            // a test alarm must not take the prepared alarm from the next stored alarm.
+            PreparedAlarm preparedAlarm = testAlarm ? null : PreparedAlarm.take(currentAlarmId,
+                    alarmFireTime, currentAlarmSoundUri, vibrate, stepsToDismiss);
+            if (preparedAlarm != null) {
+                currentAlarmChannelID = preparedAlarm.getChannelId();
+                alarmNotification = preparedAlarm.getNotification();
+            }
+            else {
+                // reuse the channel of any alarm with the same sound and vibration, a channel's
+                // settings can not be changed once it is created.
+                currentAlarmChannelID = NotificationChannelPool.getInstance(this).getChannelId(
+                        RingtoneResolver.getInstance(this)
+                                .getPlayableSoundUri(currentAlarmSoundUri),
+                        vibrate, AlarmFullScreen.VIBRATION_PATTERN);
+                alarmNotification = AlarmFullScreen.buildFullScreenNotification(this,
+                        currentAlarmName, currentAlarmChannelID, stepsToDismiss);
             }
-        }).start();
+        }
+        if (stepSource != null)
+            stepSource.stop();
+        stepSource = createStepSource();
+        dismissalSession = new DismissalSession(stepSource, stepsToDismiss,
+                getMaxSecondsToWaitForOneStep());
+        stepPoller = new StepPoller();
+        stepsRemaining.set(-1);
+        updateStepCountAlarmFullScreen(stepsToDismiss);
+        if (!alarmNotificationPosted) {
+            // post the notification from the service, which holds a wake lock, so it is shown
+            // now.
+            AlarmFullScreen.postFullScreenNotification(this, alarmNotification);
+            alarmNotificationPosted = true;
+            latencyTracker.mark(AlarmLatencyTracker.Stage.NOTIFICATION_POSTED);
+        }
+        // start anyway if the AlarmFullScreen has not been shown in time.
+        sessionScheduler.schedule(this::startDismissalSession,
+                DismissalSession.NOTIFICATION_DELAY_MS);
+    }
+
+    /**
+     * Helper method which ends the alarm session, stops counting steps, arms the next alarm and
+     * stops the service. Runs on the session thread.
+     */
+    private void finishAlarmSession(){
+        if (stepSource != null) {
+            stepSource.stop();
+            stepSource = null;
+        }
+        dismissalSession = null;
+        stepPoller = null;
+        alarmNotification = null;
+        currentAlarmName = "";
+        if (sessionScheduler.getFailureCount() > 0) {
+            Log.w(logTag, "Alarm session finished with " + sessionScheduler.getFailureCount() +
+                    " failures and " + sessionScheduler.getRestartCount() + " restarts");
+        }
+        String latencyReport = latencyTracker.endSession();
+        if (testAlarm && latencyReport != null)
+            showLatencyReport(latencyReport);
+        AlarmScheduler.scheduleNextAlarm(getApplicationContext());
+        // shut down before stopping, the service lives on while the AlarmFullScreen is bound,
+        // and a new alarm may start another session on it.
+        sessionScheduler.shutdown();
+        stopAlarmService();
+    }
+
+    /**
+     * Helper method which shows the latency report of a test alarm in a notification.
+     * @param latencyReport the report from the AlarmLatencyTracker.
+     */
+    private void showLatencyReport(String latencyReport){
+        NotificationManager manager = (NotificationManager)
+                getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.createNotificationChannel(new NotificationChannel(LATENCY_CHANNEL_ID,
+                LATENCY_CHANNEL_NAME, NotificationManager.IMPORTANCE_LOW));
+        if (ActivityCompat.checkSelfPermission(this,
+                android.Manifest.permission.POST_NOTIFICATIONS)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.i(logTag, "No notification permission, latency report only logged");
+            return;
+        }
+        manager.notify(NOTIFICATION_ID_LATENCY, new NotificationCompat.Builder(this,
+                LATENCY_CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_walk_action_foreground)
+                .setContentTitle(getString(R.string.latency_report_title))
+                .setStyle(new NotificationCompat.BigTextStyle().bigText(latencyReport))
+                .build());
+    }
+
+    /**
+     * Helper method which releases the wake lock and stops the service once an alarm session is
+     * finished, the service will be started again by the AlarmScheduler for the next alarm.
+     */
+    private void stopAlarmService(){
+        if (wakeLock != null && wakeLock.isHeld())
+            wakeLock.release();
+        stopForeground(STOP_FOREGROUND_REMOVE);
+        stopSelf();
     }
 
     /**
@@ -238,78 +439,14 @@ public class AlarmService extends Service {
         return notification;
     }
 
-    /**
-     * Create a notification channel for API >= 26 which also has a sound linked to it.
-     * This sound is pulled from AlarmItem and is set globally once an Alarm is triggered.
-     * Will also assign vibration to the channel if allowed in settings.
-     */
-    private void createAlarmChannelSound(){
-
-        final AudioAttributes audioAttributes = new AudioAttributes.Builder()
-                .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
-                .setUsage(AudioAttributes.USAGE_ALARM)
-                .build();
-
-        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
-        NotificationChannel channel = new NotificationChannel(AlarmFullScreen.CHANNEL_ID
-                + currentAlarmChannelID,
-                AlarmFullScreen.CHANNEL_NAME, NotificationManager.IMPORTANCE_HIGH);
-        channel.setDescription(AlarmFullScreen.CHANNEL_DESCRIPTION);
-        channel.enableVibration(isVibrationEnabled());
-
-        if(isVibrationEnabled())
-            channel.setVibrationPattern(AlarmFullScreen.VIBRATION_PATTERN);
-
-        Uri alarmTone = Uri.parse(currentAlarmSoundUri);
-        channel.setSound(alarmTone, audioAttributes);
-        notificationManager.createNotificationChannel(channel);
-    }
-
-    /**
-     * Will send intent to broadcast receiver to trigger the full screen notification
-     * @param steps steps which are required to dismiss the alarm, added to notification text
-     */
-    private void toFullScreenAlarm(int steps){
-        Intent intent = new Intent(AlarmFullScreen.FULL_SCREEN_ACTION_ALARM, null,
-                this, AlarmReceiver.class);
-        intent.putExtra(AlarmFullScreen.INTENT_EXTRA_ALARM_NAME, currentAlarmName);
-        intent.putExtra(AlarmFullScreen.INTENT_EXTRA_ALARM_CHANNEL_ID, currentAlarmChannelID);
-        intent.putExtra(AlarmFullScreen.INTENT_EXTRA_STEPS, steps);
-        // sound URI and vibrate is only used for API < 26 calls.
-        intent.putExtra(AlarmFullScreen.INTENT_EXTRA_ALARM_SOUND_URI, currentAlarmSoundUri);
-        intent.putExtra(AlarmFullScreen.INTENT_EXTRA_ALARM_VIBRATE_BOOL, isVibrationEnabled());
-
-        int pendingFlag;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
-        {
-            pendingFlag = PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT;
-        }
-        else {
-            pendingFlag =  PendingIntent.FLAG_UPDATE_CURRENT;
-        }
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, intent,
-                pendingFlag);
-
-        // need to use alarm manager to send intent, else it might be ignore if device is in
-        // deep sleep
-        AlarmManager alarmManager = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-        if (alarmManager != null) {
-            alarmManager.setAndAllowWhileIdle
-                    (AlarmManager.RTC_WAKEUP, System.currentTimeMillis(), pendingIntent);
-        }
-
-
-    }
-
     /**
      * Helper method which will dismiss the alarm by sending an intent to the AlarmReceiver.
-     * AlarmReceiver will cancel any notification channels or service based on API level.
-     *
+     * AlarmReceiver will cancel the notification, the channel is kept in the
+     * NotificationChannelPool for the next alarm.
      */
     private void dismissAlarm(){
         Intent intent = new Intent(AlarmFullScreen.DISMISS_ALARM_ACTION, null, this,
                 AlarmReceiver.class);
-        intent.putExtra(AlarmFullScreen.INTENT_EXTRA_ALARM_CHANNEL_ID, currentAlarmChannelID);
         int pendingFlag;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
         {
@@ -328,61 +465,64 @@ public class AlarmService extends Service {
     }
 
     /**
-     * Helper method which finds the current steps from Google Fit Api.
-     * Is called every 500ms. CountDownLatch to await response from Google Fit async call.
-     * Usually this call is very fast, but if there is no await this method could finish before
-     * current steps is set.
+     * Helper method which creates the StepSource chosen in settings. Falls back to Google Fit
+     * history if the phone has no step sensor.
+     * @return the StepSource to count steps from.
      */
-    private void findCurrentSteps(){
-        CountDownLatch latch = new CountDownLatch(1);
-        GoogleSignInAccount account = GoogleSignIn.getLastSignedInAccount(this);
-        if(account == null){
-           errorMessageToast(getString(R.string.could_not_find_account_error));
+    private StepSource createStepSource(){
+        String stepSourceSetting = settingsPref.getString(
+                SettingsActivity.SettingsFragment.STEP_SOURCE_KEY,
+                SettingsActivity.SettingsFragment.STEP_SOURCE_GOOGLE_FIT);
+        switch (stepSourceSetting) {
+            case SettingsActivity.SettingsFragment.STEP_SOURCE_GOOGLE_FIT_LIVE:
+                return new FitSensorStepSource(this);
+            case SettingsActivity.SettingsFragment.STEP_SOURCE_SENSOR:
+                if(SensorStepSource.isAvailable(this))
+                    return new SensorStepSource(this);
+                Log.w(logTag, "No step sensor found, counting steps with Google Fit");
+                return new GoogleFitStepSource(this);
+            default:
+                return new GoogleFitStepSource(this);
         }
-        else {
-            Fitness.getHistoryClient(getApplicationContext(), account)
-                    .readDailyTotal(DataType.TYPE_STEP_COUNT_DELTA)
-                    .addOnSuccessListener(dataSet -> {
-                        // get just current steps for today we will compare to previous fetch.
-                        if(dataSet.getDataPoints().size() > 0) {
-                            final int stepsInner = dataSet.getDataPoints().get(0).
-                                    getValue(Field.FIELD_STEPS).asInt();
-                            setCurrentSteps(stepsInner);
-                        }
-                        else{
-                            // a specific scenario is that the user has not moved their phone
-                            // since midnight. In that case the first alarm of the day
-                            // would have no steps. So we instead of quitting, we assign zero
-                            // steps. If this always stays at zero, eventually we should reach
-                            // SECONDS_TO_WAIT_FOR_STEPS which will dismiss the alarm.
-                            setCurrentSteps(0);
-                        }
-                        // latch is now okay to release and method can finish.
-                        latch.countDown();
-
-                    })
-                    .addOnFailureListener(e -> {
-                        // do nothing allow for latch to timeout which will print error message
-                        // and dismiss alarm
-                    });
-
-            boolean timedOut = false;
-            try {
-                timedOut = !latch.await(GOOGLE_FIT_FETCH_TIMEOUT, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                errorMessageToast(getString(R.string.could_not_find_steps_error));
-            }
-            if(timedOut){
-                errorMessageToast(getString(R.string.could_not_find_steps_error));
-            }
+    }
+
+    /**
+     * Helper method which starts counting steps, the notification has reached the user by now so
+     * the wait for steps starts here. Run both once the AlarmFullScreen is shown and after
+     * NOTIFICATION_DELAY_MS, only the first run starts the session. Once the StepSource has
+     * started, the first check is run.
+     * Any error fails the session, is toasted and dismisses the alarm.
+     * The handler is run as its own task on the SupervisedScheduler, so a failure in it is
+     * restarted rather than kept in a future nothing reads.
+     */
+    private void startDismissalSession(){
+        // no alarm is showing yet, or the session was already started.
+        if (dismissalSession == null || dismissalSession.isStarted())
+            return;
+        dismissalSession.onNotificationShown(SystemClock.elapsedRealtime());
+        dismissalSession.start().whenComplete((started, error) ->
+                sessionScheduler.execute(() -> onSessionStarted(error)));
+    }
+
+    /**
+     * Helper method which handles the StepSource starting on the session thread.
+     * @param error why the StepSource could not be started, null if it started.
+     */
+    private void onSessionStarted(Throwable error){
+        if (error != null) {
+            dismissalSession.fail();
+            errorMessageToast(getString(StepFutures.getErrorMessageId(error)));
         }
+        else
+            checkStepsRemaining();
     }
 
     /**
      * Get the number of steps we need to dismiss the alarm, default value of 5.
+     * @param settingsPref the shared preferences settings are stored in.
      * @return the number of steps to dismiss from settings or default of 5.
      */
-    private int getStepsToDismiss(){
+    static int getStepsToDismiss(SharedPreferences settingsPref){
         int stepsToDismiss = SettingsActivity.SettingsFragment.MINIMUM_STEPS_TO_DISMISS;
         String stepsString = settingsPref.
                 getString(SettingsActivity.SettingsFragment.STEPS_TO_DISMISS_KEY, "5");
@@ -396,97 +536,82 @@ public class AlarmService extends Service {
     }
 
     /**
-     * set current steps, helper method for findCurrentSteps as we cannot set the value within
-     * a lambda function.
-     * @param currentSteps current steps to set to global variable.
+     * Check if there are any steps remaining to dismiss, as a pipeline of the DismissalSession
+     * fetching the steps and updating with them, then showing the steps remaining, then
+     * handling the result back on the session thread, as a supervised task so a failure in it is
+     * restarted. While steps are still needed, the next check is scheduled as the StepPoller
+     * says.
+     * Deadlines are kept on SystemClock.elapsedRealtime, so changing the time while the alarm
+     * rings does not move them. If the session gives up waiting for steps, or the steps can not
+     * be found, the error is toasted, which dismisses the alarm.
      */
-    private void setCurrentSteps(int currentSteps) {
-        this.currentSteps = currentSteps;
+    private void checkStepsRemaining(){
+        DismissalSession session = dismissalSession;
+        session.check(SystemClock::elapsedRealtime)
+                .thenApply(result -> {
+                    latencyTracker.mark(AlarmLatencyTracker.Stage.FIRST_STEPS);
+                    updateStepCountAlarmFullScreen(session.getStepsRemaining());
+                    return result;
+                })
+                .whenComplete((result, error) ->
+                        sessionScheduler.execute(() -> onStepsChecked(result, error)));
     }
 
     /**
-     * get current steps by calling find current steps first and then returning the global variable
-     * @return current steps as found by google fit API.
+     * Helper method which handles the result of a check on the session thread.
+     * @param result the result of the check, null if the check failed.
+     * @param error why the check failed, null if it did not.
      */
-    private int getCurrentSteps() {
-        findCurrentSteps();
-        return this.currentSteps;
-    }
-
-    /**
-     * Find if there are any steps remaining to dismiss, will only start checking if
-     * the notification has reached the user, this usually takes a few seconds.
-     * If the user has seen the notification but after SECONDS_TO_WAIT_FOR_STEPS
-     * seconds no steps have been detected,
-     * we will dismiss the alarm.
-     * @return true if steps are left to dismiss alarm, false if no more steps are needed.
-     */
-    private boolean stepsRemainingToDismiss(){
-        int stepsToDismiss = getStepsToDismiss();
-        int stepsRemaining = stepsToDismiss - (getCurrentSteps() - startingSteps);
-        stepsRemaining = Math.max(stepsRemaining, 0);
-        updateStepCountAlarmFullScreen(stepsRemaining);
-
-        if(notificationTriggered){
-            alarmStartMonitor = Calendar.getInstance();
-            alarmTimeOutMonitor = Calendar.getInstance();
-            int maxSecondsToWait = getMaxSecondsToWaitForOneStep();
-            alarmStartMonitor.add(Calendar.SECOND, maxSecondsToWait);
-            // wait double to amount of time to dismiss if we find some steps but not all
-            alarmTimeOutMonitor.add(Calendar.SECOND, maxSecondsToWait * 2);
-            notificationTriggered = false;
-            foundNotification = true;
-        }
-        Calendar now = Calendar.getInstance();
-        // if after SECONDS_TO_WAIT_FOR_STEPS seconds of the notification reaching the user we still
-        // have not detected any steps, just dismiss the alarm.
-        if(foundNotification && now.after(alarmStartMonitor) && stepsRemaining == stepsToDismiss){
-            errorMessageToast(getString(R.string.could_not_find_steps_error));
-            return false;
+    private void onStepsChecked(DismissalSession.Result result, Throwable error){
+        if(error != null){
+            dismissalSession.fail();
+            errorMessageToast(getString(StepFutures.getErrorMessageId(error)));
+            return;
         }
-        // if we walked some steps but not all also dismiss the alarm eventually, else it will
-        // stick around forever
-        else if(foundNotification && now.after(alarmTimeOutMonitor)){
-            errorMessageToast(getString(R.string.alarm_not_dismissed_in_time));
-            return false;
+        switch (result) {
+            case NO_STEPS_FOUND:
+                errorMessageToast(getString(R.string.could_not_find_steps_error));
+                break;
+            case TIMED_OUT:
+                errorMessageToast(getString(R.string.alarm_not_dismissed_in_time));
+                break;
+            case DISMISSED:
+                // if full screen activity has not been created, then just
+                // print a toast to let user know the alarm has been dismissed.
+                if (!AlarmFullScreen.isCreated) {
+                    stepsDismissedToast(getString(R.string.alarm_dismissed_toast));
+                }
+                dismissAlarm();
+                finishAlarmSession();
+                break;
+            default:
+                sessionScheduler.schedule(this::checkStepsRemaining,
+                        stepPoller.nextIntervalMs(dismissalSession.getStepsRemaining(),
+                                dismissalSession.millisUntilNextDeadline(
+                                        SystemClock.elapsedRealtime())));
         }
-        return stepsRemaining > 0;
     }
 
     /**
-     * Send an intent to the AlarmReceiver with the steps remaining to dismiss the alarm.
-     * This will allow us to update the AlarmFullScreen activity in real time with remaining steps
-     * the user has to walk.
+     * Publish the steps remaining to dismiss the alarm to every bound ProgressListener, such as
+     * the AlarmFullScreen activity, so it is updated in real time. Listeners are only called
+     * when the steps remaining changed since the last call.
      * @param steps the steps remaining to dismiss the alarm
      */
     private void updateStepCountAlarmFullScreen(int steps){
-
-        Intent intent = new Intent(AlarmFullScreen.WALK_ACTION, null, this,
-                AlarmReceiver.class);
-        intent.putExtra(AlarmFullScreen.INTENT_EXTRA_STEPS, steps);
-        intent.putExtra(AlarmFullScreen.INTENT_EXTRA_ALARM_NAME, currentAlarmName);
-        int pendingFlag;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
-        {
-            pendingFlag = PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT;
-        }
-        else {
-            pendingFlag =  PendingIntent.FLAG_UPDATE_CURRENT;
-        }
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, intent,
-                pendingFlag);
-        try {
-            pendingIntent.send();
-        } catch (PendingIntent.CanceledException e) {
-            e.printStackTrace();
+        if(stepsRemaining.getAndSet(steps) == steps)
+            return;
+        for(ProgressListener listener : progressListeners){
+            mainHandler.post(() -> listener.onStepsRemainingChanged(steps));
         }
     }
 
     /**
      * Helper method which gets the vibration setting from the SettingsActivity
+     * @param settingsPref the shared preferences settings are stored in.
      * @return true or false if vibration is enabled.
      */
-    private boolean isVibrationEnabled(){
+    static boolean isVibrationEnabled(SharedPreferences settingsPref){
         return settingsPref.getBoolean(SettingsActivity.SettingsFragment.VIBRATE_KEY,
                 false);
     }
@@ -510,24 +635,16 @@ public class AlarmService extends Service {
     }
 
     /**
-     * Helper method which sleeps main thread, used in main loop for service
-     * @param milliseconds how long to sleep
-     */
-    private void sleepMainThread(int milliseconds){
-        try{
-            Thread.sleep(milliseconds);
-        } catch(InterruptedException e){
-            e.printStackTrace();
-        }
-
-    }
-
-    /**
-     * Helper method which will toast an input string, and then also dismiss the alarm.
-     * Any calls to this method are assumed to be errors.
+     * Helper method which will toast an input string, and then also dismiss the alarm and end
+     * the session once the toast has had time to reach the user.
+     * Any calls to this method are assumed to be errors. Runs on the session thread. Only the
+     * first result of a session is toasted and ends it.
      * @param toastText the message to toast
      */
     private void errorMessageToast(String toastText) {
+        if (sessionResultToasted)
+            return;
+        sessionResultToasted = true;
 
         Intent intent = new Intent(AlarmService.TOAST_MESSAGE_FROM_SERVICE_ACTION, null,
                 this, AlarmReceiver.class);
@@ -550,19 +667,23 @@ public class AlarmService extends Service {
         }
 
         // wait a little for the notification to reach user, before dismissing alarm
-        sleepMainThread(POLLING_FREQUENCY_MS);
-        dismissAlarm();
-        this.errorFoundDuringAlarm = true;
-
+        sessionScheduler.schedule(() -> {
+            dismissAlarm();
+            finishAlarmSession();
+        }, POLLING_FREQUENCY_MS);
     }
 
     /**
      * Helper method which will send a toast message to the user that they walked enough steps
      * to dismiss the alarm. This is only used if the user did not tap the notification, as a
      * indicator that the alarm is dismissed. This is not to be used for error messages.
+     * Only the first result of a session is toasted.
      * @param toastText the message we will toast to the user.
      */
     private void stepsDismissedToast(String toastText) {
+        if (sessionResultToasted)
+            return;
+        sessionResultToasted = true;
         Intent intent = new Intent(AlarmService.TOAST_MESSAGE_FROM_SERVICE_ACTION,
                 null, this,
                 AlarmReceiver.class);
@@ -0,0 +1,460 @@
+package com.maxkernchen.walkingalarm;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * AlarmStore class stores alarm items in a SQLite database, each with a stable primary key.
+ * Every active alarm also has one row per day of week in an alarm slots table, which is indexed
+ * on (active, minute_of_week). This lets the AlarmService find the alarm due at a minute, and the
+ * AlarmScheduler find the next alarms, with an indexed query instead of a scan over every alarm.
+ * Inserts, updates and deletes only touch the rows of the one alarm being changed.
+ *
+ * On creation any alarms from the old AlarmRecordFile, or older still the JSON strings in shared
+ * preferences, are moved into the database. They are only removed once the database is open, as
+ * onCreate runs inside a transaction which could still be rolled back.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class AlarmStore extends SQLiteOpenHelper {
+
+    // name of the database file.
+    private static final String DATABASE_NAME = "alarms.db";
+    // current version of the database schema.
+    private static final int DATABASE_VERSION = 2;
+    // name of the binary alarm file used before the database.
+    private static final String LEGACY_ALARM_FILE_NAME = "alarms.bin";
+    // log tag for logging.
+    private static final String logTag = "AlarmStore";
+    // table and column names for the alarms table.
+    private static final String TABLE_ALARMS = "alarms";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_MINUTE_OF_DAY = "minute_of_day";
+    private static final String COLUMN_DAYS_OF_WEEK = "days_of_week";
+    private static final String COLUMN_ACTIVE = "active";
+    private static final String COLUMN_SOUND_URI = "sound_uri";
+    private static final String COLUMN_SOUND_NAME = "sound_name";
+    // table and column names for the alarm slots table.
+    private static final String TABLE_ALARM_SLOTS = "alarm_slots";
+    private static final String COLUMN_ALARM_ID = "alarm_id";
+    private static final String COLUMN_MINUTE_OF_WEEK = "minute_of_week";
+    // columns of the alarms table selected when building an AlarmItem, prefixed for joins.
+    private static final String ALARM_COLUMNS = "a." + COLUMN_ID + ", a." + COLUMN_MINUTE_OF_DAY +
+            ", a." + COLUMN_DAYS_OF_WEEK + ", a." + COLUMN_ACTIVE + ", a." + COLUMN_SOUND_URI +
+            ", a." + COLUMN_SOUND_NAME;
+    // single instance of the store shared by the whole process.
+    private static AlarmStore instance;
+    // application context, used to find legacy alarms when the database is created.
+    private final Context context;
+    // true once legacy alarms are moved into a new database, until they are removed on open.
+    private boolean legacyCleanupPending = false;
+
+    /**
+     * Private constructor, use getInstance.
+     * @param context application context.
+     */
+    private AlarmStore(Context context){
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    /**
+     * Get the process wide AlarmStore, creating it on first use.
+     * @param context context used to open the database.
+     * @return the AlarmStore instance.
+     */
+    public static synchronized AlarmStore getInstance(Context context){
+        if(instance == null){
+            instance = new AlarmStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Turn on foreign keys so deleting an alarm also deletes its slots.
+     * @param db the database being opened.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    /**
+     * Remove the legacy alarms moved over in onCreate, which has now been committed.
+     * @param db the database being opened.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if(legacyCleanupPending){
+            legacyCleanupPending = false;
+            new File(context.getFilesDir(), LEGACY_ALARM_FILE_NAME).delete();
+            getLegacyPrefs().edit().clear().apply();
+        }
+    }
+
+    /**
+     * Create the tables and index, then move over any alarms stored the old ways.
+     * @param db the database being created.
+     */
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_ALARMS + " (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_MINUTE_OF_DAY + " INTEGER NOT NULL, " +
+                COLUMN_DAYS_OF_WEEK + " INTEGER NOT NULL, " +
+                COLUMN_ACTIVE + " INTEGER NOT NULL, " +
+                COLUMN_SOUND_URI + " TEXT NOT NULL, " +
+                COLUMN_SOUND_NAME + " TEXT NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_ALARM_SLOTS + " (" +
+                COLUMN_ALARM_ID + " INTEGER NOT NULL REFERENCES " + TABLE_ALARMS + "(" +
+                COLUMN_ID + ") ON DELETE CASCADE, " +
+                COLUMN_MINUTE_OF_WEEK + " INTEGER NOT NULL, " +
+                COLUMN_ACTIVE + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX alarm_slots_active_minute ON " + TABLE_ALARM_SLOTS + " (" +
+                COLUMN_ACTIVE + ", " + COLUMN_MINUTE_OF_WEEK + ")");
+        db.execSQL("CREATE INDEX alarm_slots_alarm_id ON " + TABLE_ALARM_SLOTS + " (" +
+                COLUMN_ALARM_ID + ")");
+
+        migrateLegacyAlarms(db);
+    }
+
+    /**
+     * Upgrade an older database. Version 1 had a triggered column on the alarms table, which is
+     * now kept in the TriggerJournal. It has a default so is left in place and no longer read.
+     * @param db the database being upgraded.
+     * @param oldVersion the version on disk.
+     * @param newVersion the version we need.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    /**
+     * Get every alarm item, in the order they were added.
+     * @return list of all alarm items.
+     */
+    public List<AlarmItem> getAllAlarms(){
+        return queryAlarms("SELECT " + ALARM_COLUMNS + " FROM " + TABLE_ALARMS + " a ORDER BY a." +
+                COLUMN_ID, null);
+    }
+
+    /**
+     * Get the active alarms which should fire during a minute of the week.
+     * @param minuteOfWeek the minute of the week, as given by AlarmIndex.
+     * @return list of alarm items due at the minute, usually zero or one.
+     */
+    public List<AlarmItem> getAlarmsDueAt(int minuteOfWeek){
+        return queryAlarms("SELECT " + ALARM_COLUMNS + " FROM " + TABLE_ALARM_SLOTS + " s JOIN " +
+                        TABLE_ALARMS + " a ON a." + COLUMN_ID + " = s." + COLUMN_ALARM_ID +
+                        " WHERE s." + COLUMN_ACTIVE + " = 1 AND s." + COLUMN_MINUTE_OF_WEEK +
+                        " = ?",
+                new String[]{String.valueOf(minuteOfWeek)});
+    }
+
+    /**
+     * Get the next alarms which will fire strictly after a time, soonest first.
+     * @param afterMillis the time to search forward from.
+     * @param limit the maximum number of alarms to return.
+     * @return list of upcoming alarms with the time they will fire.
+     */
+    public List<UpcomingAlarm> getNextAlarms(long afterMillis, int limit){
+        TimeZone timeZone = TimeZone.getDefault();
+        int nowMinute = AlarmIndex.minuteOfWeek(afterMillis, timeZone);
+        List<UpcomingAlarm> upcomingAlarms = new ArrayList<>();
+        // first the rest of this week, then wrap around to the start of the week.
+        queryUpcomingAlarms(COLUMN_MINUTE_OF_WEEK + " > ?", nowMinute, limit, afterMillis,
+                timeZone, upcomingAlarms);
+        if(upcomingAlarms.size() < limit) {
+            queryUpcomingAlarms(COLUMN_MINUTE_OF_WEEK + " <= ?", nowMinute,
+                    limit - upcomingAlarms.size(), afterMillis, timeZone, upcomingAlarms);
+        }
+        return upcomingAlarms;
+    }
+
+    /**
+     * Insert a new alarm item and its slots, the item is given its new id.
+     * @param item the alarm item to insert.
+     * @return the id of the new alarm.
+     */
+    public long insertAlarm(AlarmItem item){
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long id = insertAlarm(db, item);
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Update the settings of an alarm item and its slots.
+     * @param item the alarm item to update.
+     */
+    public void updateAlarm(AlarmItem item){
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            updateAlarm(db, item);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Save a batch of changed alarms in one transaction, used by the AlarmWriter. Alarms which
+     * have not been stored yet are inserted, and their original is given the new id.
+     * @param originals the alarm items as held by the UI, only their id is read or set.
+     * @param copies copies of the originals holding the values to save, in the same order.
+     */
+    public void saveAlarms(List<AlarmItem> originals, List<AlarmItem> copies){
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for(int i = 0; i < originals.size(); i++){
+                AlarmItem original = originals.get(i);
+                AlarmItem copy = copies.get(i);
+                if(original.getId() == AlarmItem.NO_ID){
+                    original.setId(insertAlarm(db, copy));
+                }
+                else {
+                    copy.setId(original.getId());
+                    updateAlarm(db, copy);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Delete an alarm item, its slots are deleted along with it.
+     * @param id the id of the alarm to delete.
+     */
+    public void deleteAlarm(long id){
+        getWritableDatabase().delete(TABLE_ALARMS, COLUMN_ID + " = ?",
+                new String[]{String.valueOf(id)});
+    }
+
+    /**
+     * Helper method which inserts an alarm and its slots, must be called in a transaction.
+     * @param db the database to insert into.
+     * @param item the alarm item to insert, is given its new id.
+     * @return the id of the new alarm.
+     */
+    private static long insertAlarm(SQLiteDatabase db, AlarmItem item){
+        ContentValues values = toContentValues(item);
+        long id = db.insertOrThrow(TABLE_ALARMS, null, values);
+        item.setId(id);
+        insertSlots(db, item);
+        return id;
+    }
+
+    /**
+     * Helper method which updates an alarm and replaces its slots, must be called in a
+     * transaction.
+     * @param db the database to update.
+     * @param item the alarm item to update.
+     */
+    private static void updateAlarm(SQLiteDatabase db, AlarmItem item){
+        ContentValues values = toContentValues(item);
+        db.update(TABLE_ALARMS, values, COLUMN_ID + " = ?",
+                new String[]{String.valueOf(item.getId())});
+        db.delete(TABLE_ALARM_SLOTS, COLUMN_ALARM_ID + " = ?",
+                new String[]{String.valueOf(item.getId())});
+        insertSlots(db, item);
+    }
+
+    /**
+     * Helper method which inserts one slot for each day of week the alarm is set for.
+     * @param db the database to insert into.
+     * @param item the alarm item to insert slots for.
+     */
+    private static void insertSlots(SQLiteDatabase db, AlarmItem item){
+        ContentValues values = new ContentValues();
+        for(int minuteOfWeek : AlarmIndex.slotsOf(item)){
+            values.put(COLUMN_ALARM_ID, item.getId());
+            values.put(COLUMN_MINUTE_OF_WEEK, minuteOfWeek);
+            values.put(COLUMN_ACTIVE, item.isActive() ? 1 : 0);
+            db.insertOrThrow(TABLE_ALARM_SLOTS, null, values);
+        }
+    }
+
+    /**
+     * Helper method which gets the settings columns of an alarm item.
+     * @param item the alarm item.
+     * @return ContentValues of every column except the id.
+     */
+    private static ContentValues toContentValues(AlarmItem item){
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_MINUTE_OF_DAY, item.getMinuteOfDay());
+        values.put(COLUMN_DAYS_OF_WEEK, item.getDaysOfWeekMask());
+        values.put(COLUMN_ACTIVE, item.isActive() ? 1 : 0);
+        values.put(COLUMN_SOUND_URI, item.getAlarmSoundUri());
+        values.put(COLUMN_SOUND_NAME, item.getAlarmSoundName());
+        return values;
+    }
+
+    /**
+     * Helper method which runs a query selecting ALARM_COLUMNS and builds an AlarmItem per row.
+     * @param sql the query to run.
+     * @param selectionArgs arguments for the query.
+     * @return list of alarm items.
+     */
+    private List<AlarmItem> queryAlarms(String sql, String[] selectionArgs){
+        List<AlarmItem> items = new ArrayList<>();
+        try(Cursor cursor = getReadableDatabase().rawQuery(sql, selectionArgs)) {
+            while (cursor.moveToNext()) {
+                items.add(toAlarmItem(cursor));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Helper method which queries active slots in minute of week order and adds an UpcomingAlarm
+     * for each one found.
+     * @param minuteCondition condition on the minute of the week, with one argument.
+     * @param nowMinute the current minute of the week, the argument of the condition.
+     * @param limit maximum number of alarms to add.
+     * @param afterMillis the time to find the next fire time after.
+     * @param timeZone the time zone the alarms are set in.
+     * @param upcomingAlarms the list to add to.
+     */
+    private void queryUpcomingAlarms(String minuteCondition, int nowMinute, int limit,
+                                     long afterMillis, TimeZone timeZone,
+                                     List<UpcomingAlarm> upcomingAlarms){
+        String sql = "SELECT " + ALARM_COLUMNS + ", s." + COLUMN_MINUTE_OF_WEEK + " FROM " +
+                TABLE_ALARM_SLOTS + " s JOIN " + TABLE_ALARMS + " a ON a." + COLUMN_ID + " = s." +
+                COLUMN_ALARM_ID + " WHERE s." + COLUMN_ACTIVE + " = 1 AND s." + minuteCondition +
+                " ORDER BY s." + COLUMN_MINUTE_OF_WEEK + " LIMIT " + limit;
+        try(Cursor cursor = getReadableDatabase().rawQuery(sql,
+                new String[]{String.valueOf(nowMinute)})) {
+            while (cursor.moveToNext()) {
+                int minuteOfWeek = cursor.getInt(6);
+                upcomingAlarms.add(new UpcomingAlarm(toAlarmItem(cursor),
+                        AlarmIndex.nextFireTime(afterMillis, minuteOfWeek, timeZone)));
+            }
+        }
+    }
+
+    /**
+     * Helper method which builds an AlarmItem from the ALARM_COLUMNS of the current cursor row.
+     * @param cursor the cursor positioned on a row.
+     * @return the alarm item for the row.
+     */
+    private static AlarmItem toAlarmItem(Cursor cursor){
+        AlarmItem item = new AlarmItem(cursor.getInt(1), (byte) cursor.getInt(2),
+                cursor.getInt(3) != 0, cursor.getString(4), cursor.getString(5));
+        item.setId(cursor.getLong(0));
+        return item;
+    }
+
+    /**
+     * Helper method which moves alarms stored the old ways into a new database. Alarms are read
+     * from the binary AlarmRecordFile, or if that was never written from the JSON strings
+     * in shared preferences. The old alarms are left in place until onOpen, once the database
+     * they were moved into is committed.
+     * @param db the database being created.
+     */
+    private void migrateLegacyAlarms(SQLiteDatabase db){
+        // a rolled back earlier attempt may have set this.
+        legacyCleanupPending = false;
+        File legacyFile = new File(context.getFilesDir(), LEGACY_ALARM_FILE_NAME);
+        SharedPreferences legacyPrefs = getLegacyPrefs();
+        List<AlarmItem> legacyItems;
+        try {
+            AlarmRecordFile alarmFile = new AlarmRecordFile(legacyFile);
+            legacyItems = alarmFile.exists() ? alarmFile.read() :
+                    readLegacyAlarmItems(legacyPrefs);
+        } catch (IOException e) {
+            Log.e(logTag, "Could not read legacy alarms", e);
+            return;
+        }
+        for(AlarmItem item : legacyItems){
+            insertAlarm(db, item);
+        }
+        legacyCleanupPending = true;
+    }
+
+    /**
+     * @return the shared preferences the oldest alarms were stored in.
+     */
+    private SharedPreferences getLegacyPrefs(){
+        return context.getSharedPreferences(context.getString(R.string.shared_prefs_key),
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Read alarm items stored the oldest way, as one JSON string per alarm in shared preferences
+     * under the keys "0", "1", "2"... in the LegacyAlarmItem form.
+     * @param prefs the preferences to get the alarm items from
+     * @return List of Alarm Items from shared preferences.
+     */
+    private static List<AlarmItem> readLegacyAlarmItems(SharedPreferences prefs){
+        Gson gson = new Gson();
+        int i = 0;
+        List<AlarmItem> items = new ArrayList<>();
+        String jsonItem = prefs.getString(String.valueOf(i), "");
+        while(!jsonItem.isEmpty()){
+            items.add(gson.fromJson(jsonItem, LegacyAlarmItem.class).toAlarmItem());
+            i++;
+            jsonItem = prefs.getString(String.valueOf(i), "");
+        }
+
+        return items;
+    }
+
+    /**
+     * An alarm item along with the next time it will fire.
+     */
+    public static class UpcomingAlarm {
+        // the alarm which will fire.
+        private final AlarmItem alarmItem;
+        // the time in millis it will next fire.
+        private final long fireTimeMillis;
+
+        /**
+         * Constructor for UpcomingAlarm.
+         * @param alarmItem the alarm which will fire.
+         * @param fireTimeMillis the time in millis it will next fire.
+         */
+        private UpcomingAlarm(AlarmItem alarmItem, long fireTimeMillis){
+            this.alarmItem = alarmItem;
+            this.fireTimeMillis = fireTimeMillis;
+        }
+
+        /**
+         * @return the alarm which will fire.
+         */
+        public AlarmItem getAlarmItem() {
+            return alarmItem;
+        }
+
+        /**
+         * @return the time in millis it will next fire.
+         */
+        public long getFireTimeMillis() {
+            return fireTimeMillis;
+        }
+    }
+}
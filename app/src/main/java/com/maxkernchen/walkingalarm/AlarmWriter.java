@@ -0,0 +1,143 @@
+package com.maxkernchen.walkingalarm;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * AlarmWriter class saves changes made to alarm items in the UI to the AlarmStore.
+ * Changed alarms are marked dirty on the main thread, and once no more changes have come in for
+ * WRITE_DELAY_MS only those dirty alarms are written, in one transaction on a background thread.
+ * So several quick toggles of the same alarm end up as one small write, and nothing is written
+ * for changes which are not saved, such as scrolling or expanding an alarm.
+ *
+ * The store id of each alarm is only read and set on the background thread, which also runs
+ * inserts, updates and deletes in the order they were asked for. The alarms are loaded on the
+ * same thread as the app starts, so the main thread never reads the AlarmStore. There is one
+ * AlarmWriter for the whole process, so a load always runs after every write asked for before
+ * it, even one from an activity which has since been recreated.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class AlarmWriter {
+
+    // how long to wait in ms after the last change before writing the dirty alarms.
+    private static final long WRITE_DELAY_MS = 500;
+    // name of the background thread the writes are run on.
+    private static final String WRITER_THREAD_NAME = "AlarmWriter";
+    // single instance of the writer shared by the whole process.
+    private static AlarmWriter instance;
+    // the database the alarms are written to.
+    private final AlarmStore alarmStore;
+    // application context, used to re-arm the next alarm after each write.
+    private final Context context;
+    // single background thread which all writes are run on, in order.
+    private final ExecutorService writeExecutor;
+    // handler for the main thread, used to wait WRITE_DELAY_MS before writing.
+    private final Handler mainHandler;
+    // alarms changed since the last write, by identity as AlarmItem equals only checks the time.
+    // Only touched on the main thread.
+    private final Set<AlarmItem> dirtyAlarms =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    // runnable which writes the dirty alarms once WRITE_DELAY_MS has passed.
+    private final Runnable flushRunnable = this::flush;
+
+    /**
+     * Private constructor, use getInstance.
+     * @param context application context.
+     */
+    private AlarmWriter(Context context){
+        this.context = context;
+        this.alarmStore = AlarmStore.getInstance(context);
+        this.writeExecutor = Executors.newSingleThreadExecutor(
+                runnable -> new Thread(runnable, WRITER_THREAD_NAME));
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Get the process wide AlarmWriter, creating it on first use.
+     * @param context any context, the application context is kept.
+     * @return the AlarmWriter instance.
+     */
+    public static synchronized AlarmWriter getInstance(Context context){
+        if(instance == null){
+            instance = new AlarmWriter(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Read every alarm from the AlarmStore on the background thread, then arm the next alarm.
+     * Any changes still waiting are written first, so the alarms read include them.
+     * Must be called on the main thread.
+     * @param onLoaded called on the main thread with the alarms read.
+     */
+    public void load(Consumer<List<AlarmItem>> onLoaded){
+        flush();
+        writeExecutor.execute(() -> {
+            List<AlarmItem> items = alarmStore.getAllAlarms();
+            mainHandler.post(() -> onLoaded.accept(items));
+            AlarmScheduler.scheduleNextAlarm(context);
+        });
+    }
+
+    /**
+     * Mark an alarm as changed, or newly added, so it is written once changes stop coming in.
+     * Must be called on the main thread.
+     * @param item the alarm item which changed.
+     */
+    public void markDirty(AlarmItem item){
+        dirtyAlarms.add(item);
+        mainHandler.removeCallbacks(flushRunnable);
+        mainHandler.postDelayed(flushRunnable, WRITE_DELAY_MS);
+    }
+
+    /**
+     * Delete an alarm from the AlarmStore, any changes not yet written for it are dropped.
+     * Must be called on the main thread.
+     * @param item the alarm item which was deleted.
+     */
+    public void delete(AlarmItem item){
+        dirtyAlarms.remove(item);
+        writeExecutor.execute(() -> {
+            // an alarm which was never written has no id, and nothing to delete.
+            if(item.getId() != AlarmItem.NO_ID){
+                alarmStore.deleteAlarm(item.getId());
+                AlarmScheduler.scheduleNextAlarm(context);
+            }
+        });
+    }
+
+    /**
+     * Write the dirty alarms now rather than waiting, called when the UI is going away.
+     * Must be called on the main thread.
+     */
+    public void flush(){
+        mainHandler.removeCallbacks(flushRunnable);
+        if(dirtyAlarms.isEmpty())
+            return;
+
+        // copy the values on the main thread, so the UI can keep changing the alarms.
+        List<AlarmItem> originals = new ArrayList<>(dirtyAlarms);
+        List<AlarmItem> copies = new ArrayList<>(dirtyAlarms.size());
+        for(AlarmItem item : originals){
+            copies.add(new AlarmItem(item));
+        }
+        dirtyAlarms.clear();
+
+        writeExecutor.execute(() -> {
+            alarmStore.saveAlarms(originals, copies);
+            AlarmScheduler.scheduleNextAlarm(context);
+        });
+    }
+}
@@ -0,0 +1,237 @@
+package com.maxkernchen.walkingalarm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * DismissalSession class holds the logic deciding when a ringing alarm is dismissed, apart from
+ * the AlarmService so it can be run against any StepSource and clock. The AlarmService checks
+ * the session, waiting as long as the StepPoller says between checks, until it is no longer
+ * walking.
+ *
+ * A check is a pipeline of futures, the StepSource fetches the steps, then the session is
+ * updated with them, so no thread waits on the StepSource.
+ *
+ * Once the notification has reached the user, if no steps are found within the max seconds to
+ * wait for one step the alarm is dismissed, and if some steps are found but not all it is
+ * dismissed after double that time, so it does not ring forever. Times passed in should come
+ * from a monotonic clock, such as SystemClock.elapsedRealtime, so a change of the wall clock
+ * during the alarm does not move the deadlines.
+ *
+ * The session moves through the states of State, driven by the notification being shown, the
+ * checks, and failures. The state is held atomically so it can be read from any thread.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class DismissalSession {
+
+    /**
+     * Longest time to wait in ms for the notification to be shown before counting steps anyway,
+     * such as when only a heads up notification is shown and the AlarmFullScreen never is.
+     */
+    public static final int NOTIFICATION_DELAY_MS = 3000;
+
+    /**
+     * Result of checking a session.
+     */
+    public enum Result {
+        /** steps are still needed to dismiss the alarm. */
+        WALKING,
+        /** all steps were walked and the alarm is dismissed. */
+        DISMISSED,
+        /** no steps were found in time after the notification reached the user. */
+        NO_STEPS_FOUND,
+        /** some steps were found, but not all of them in time. */
+        TIMED_OUT
+    }
+
+    /**
+     * State of a session, a session starts ARMED and ends in one of DISMISSED, TIMED_OUT or
+     * FAILED.
+     */
+    public enum State {
+        /** the alarm is ringing, but the notification has not reached the user yet. */
+        ARMED,
+        /** the notification has reached the user, no steps have been found yet. */
+        NOTIFIED,
+        /** some steps have been found after the notification reached the user. */
+        WALKING,
+        /** all steps were walked and the alarm is dismissed. */
+        DISMISSED,
+        /** the steps were not walked in time. */
+        TIMED_OUT,
+        /** steps could not be counted. */
+        FAILED;
+
+        /**
+         * @return true if the session has ended in this state.
+         */
+        public boolean isFinal(){
+            return this == DISMISSED || this == TIMED_OUT || this == FAILED;
+        }
+    }
+
+    // where steps are counted from.
+    private final StepSource stepSource;
+    // number of steps needed to dismiss the alarm.
+    private final int stepsToDismiss;
+    // how long in ms to wait for at least one step after the notification reached the user.
+    private final long maxMillisToWaitForOneStep;
+    // current state of the session.
+    private final AtomicReference<State> state = new AtomicReference<>(State.ARMED);
+    // future from starting the StepSource, null until start is called.
+    private CompletableFuture<Void> started;
+    // steps still needed as of the last check.
+    private int stepsRemaining;
+    // time in ms after which the alarm is dismissed if no steps were found.
+    private long noStepsDeadline;
+    // time in ms after which the alarm is dismissed if not all steps were found.
+    private long timeOutDeadline;
+
+    /**
+     * Constructor for DismissalSession.
+     * @param stepSource where steps are counted from, must not be started yet.
+     * @param stepsToDismiss number of steps needed to dismiss the alarm.
+     * @param maxSecondsToWaitForOneStep how long to wait for at least one step after the
+     * notification reached the user.
+     */
+    public DismissalSession(StepSource stepSource, int stepsToDismiss,
+                            int maxSecondsToWaitForOneStep){
+        this.stepSource = stepSource;
+        this.stepsToDismiss = stepsToDismiss;
+        this.maxMillisToWaitForOneStep = maxSecondsToWaitForOneStep * 1000L;
+        this.stepsRemaining = stepsToDismiss;
+    }
+
+    /**
+     * Start the StepSource, steps are counted from here. The StepSource is only started once,
+     * calling this again returns the same future.
+     * @return future completing once the StepSource is started, or failing with a
+     * StepSourceException if it could not be.
+     */
+    public synchronized CompletableFuture<Void> start() {
+        if(started == null)
+            started = stepSource.start();
+        return started;
+    }
+
+    /**
+     * @return true once start has started the StepSource.
+     */
+    public synchronized boolean isStarted(){
+        return started != null;
+    }
+
+    /**
+     * Called once the notification has reached the user, the wait for steps starts from here.
+     * Moves the session from ARMED to NOTIFIED.
+     * @param nowMillis the current time.
+     * @return true if the session was ARMED, false if the notification was already shown or the
+     * session has ended.
+     */
+    public boolean onNotificationShown(long nowMillis){
+        if(state.get() != State.ARMED)
+            return false;
+        // the deadlines are set before the state, so they are seen by any thread which sees it.
+        noStepsDeadline = nowMillis + maxMillisToWaitForOneStep;
+        // wait double to amount of time to dismiss if we find some steps but not all
+        timeOutDeadline = nowMillis + maxMillisToWaitForOneStep * 2;
+        return state.compareAndSet(State.ARMED, State.NOTIFIED);
+    }
+
+    /**
+     * Called once steps can no longer be counted, ends the session as FAILED.
+     * @return true if the session was not already ended.
+     */
+    public boolean fail(){
+        return end(State.FAILED);
+    }
+
+    /**
+     * Fetch the current steps from the StepSource, then update the session with them.
+     * @param clock gives the current time, read once the steps have been fetched.
+     * @return future completing with the result of update, or failing with a
+     * StepSourceException if the current steps could not be found.
+     */
+    public CompletableFuture<Result> check(LongSupplier clock) {
+        return stepSource.getCurrentSteps()
+                .thenApply(stepsWalked -> update(stepsWalked, clock.getAsLong()));
+    }
+
+    /**
+     * Update the session with the steps walked, and find if the alarm should be dismissed.
+     * @param stepsWalked steps walked since the StepSource was started.
+     * @param nowMillis the current time.
+     * @return WALKING if steps are still needed, otherwise why the alarm is dismissed.
+     */
+    public Result update(int stepsWalked, long nowMillis) {
+        stepsRemaining = Math.max(stepsToDismiss - stepsWalked, 0);
+        if(stepsRemaining == 0){
+            end(State.DISMISSED);
+            return Result.DISMISSED;
+        }
+
+        State current = state.get();
+        if(current == State.ARMED)
+            return Result.WALKING;
+        if(current == State.NOTIFIED && stepsRemaining < stepsToDismiss)
+            state.compareAndSet(State.NOTIFIED, State.WALKING);
+        // if after the max seconds to wait of the notification reaching the user we still
+        // have not detected any steps, just dismiss the alarm.
+        if(nowMillis > noStepsDeadline && stepsRemaining == stepsToDismiss){
+            end(State.TIMED_OUT);
+            return Result.NO_STEPS_FOUND;
+        }
+        // if we walked some steps but not all also dismiss the alarm eventually, else it will
+        // stick around forever
+        if(nowMillis > timeOutDeadline){
+            end(State.TIMED_OUT);
+            return Result.TIMED_OUT;
+        }
+        return Result.WALKING;
+    }
+
+    /**
+     * Get the time until the next deadline passes, after which a check may dismiss the alarm.
+     * @param nowMillis the current time.
+     * @return ms until the next deadline, Long.MAX_VALUE if the notification has not been shown.
+     */
+    public long millisUntilNextDeadline(long nowMillis){
+        if(state.get() == State.ARMED)
+            return Long.MAX_VALUE;
+        if(nowMillis <= noStepsDeadline)
+            return noStepsDeadline - nowMillis;
+        return Math.max(timeOutDeadline - nowMillis, 0);
+    }
+
+    /**
+     * @return steps still needed to dismiss the alarm, as of the last check.
+     */
+    public int getStepsRemaining(){
+        return stepsRemaining;
+    }
+
+    /**
+     * @return the current state of the session, may be called from any thread.
+     */
+    public State getState(){
+        return state.get();
+    }
+
+    /**
+     * Helper method which ends the session in a final state, unless it has already ended.
+     * @param finalState the state to end in.
+     * @return true if the session was ended, false if it had already ended.
+     */
+    private boolean end(State finalState){
+        State current;
+        do {
+            current = state.get();
+            if(current.isFinal())
+                return false;
+        } while(!state.compareAndSet(current, finalState));
+        return true;
+    }
+}
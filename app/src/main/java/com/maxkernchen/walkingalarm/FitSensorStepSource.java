@@ -0,0 +1,124 @@
+package com.maxkernchen.walkingalarm;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.auth.api.signin.GoogleSignIn;
+import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.RecordingClient;
+import com.google.android.gms.fitness.SensorsClient;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.request.OnDataPointListener;
+import com.google.android.gms.fitness.request.SensorRequest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FitSensorStepSource class counts steps from step deltas pushed by Google Fit while an alarm is
+ * ringing, instead of reading the daily total over and over like GoogleFitStepSource.
+ * On start it subscribes to step deltas through the Recording API, and registers a listener on
+ * the Sensors API so each delta is added to the count as it arrives. Reading the steps is then
+ * just reading that count, with no call into Google Play Services. Both are removed on stop.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class FitSensorStepSource implements StepSource, OnDataPointListener {
+
+    // how long to wait in ms for the subscription and listener to be set up.
+    private static final int GOOGLE_FIT_SETUP_TIMEOUT = 10000;
+    // how often in seconds Google Fit should push step deltas.
+    private static final int SAMPLING_RATE_SECONDS = 1;
+    // log tag for logging.
+    private static final String logTag = "FitSensorStepSource";
+    // application context used to call the Google Fit API.
+    private final Context context;
+    // steps pushed by Google Fit since the source was started.
+    private final AtomicInteger steps = new AtomicInteger();
+    // client used to subscribe to step deltas, null until started.
+    private RecordingClient recordingClient;
+    // client the listener is registered on, null until started.
+    private SensorsClient sensorsClient;
+
+    /**
+     * Constructor for FitSensorStepSource.
+     * @param context context used to call the Google Fit API.
+     */
+    public FitSensorStepSource(Context context){
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Subscribe to step deltas and then register for them to be pushed to this source.
+     * @return future completing once both are set up, or failing with a StepSourceException if
+     * there is no Google account, or the set up failed or did not complete within
+     * GOOGLE_FIT_SETUP_TIMEOUT.
+     */
+    @Override
+    public CompletableFuture<Void> start() {
+        GoogleSignInAccount account = GoogleSignIn.getLastSignedInAccount(context);
+        if(account == null)
+            return StepFutures.failed(
+                    new StepSourceException(R.string.could_not_find_account_error));
+
+        steps.set(0);
+        RecordingClient recording = Fitness.getRecordingClient(context, account);
+        SensorsClient sensors = Fitness.getSensorsClient(context, account);
+        synchronized (this) {
+            recordingClient = recording;
+            sensorsClient = sensors;
+        }
+        SensorRequest sensorRequest = new SensorRequest.Builder()
+                .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
+                .setSamplingRate(SAMPLING_RATE_SECONDS, TimeUnit.SECONDS)
+                .build();
+        CompletableFuture<Void> setUp = StepFutures.fromTask(
+                        recording.subscribe(DataType.TYPE_STEP_COUNT_DELTA))
+                .thenCompose(subscribed ->
+                        StepFutures.fromTask(sensors.add(sensorRequest, this)));
+        return StepFutures.withTimeout(setUp, GOOGLE_FIT_SETUP_TIMEOUT)
+                .whenComplete((result, error) -> {
+                    if(error != null)
+                        stop();
+                });
+    }
+
+    /**
+     * @return future which has completed with the steps pushed by Google Fit since start.
+     */
+    @Override
+    public CompletableFuture<Integer> getCurrentSteps() {
+        return CompletableFuture.completedFuture(steps.get());
+    }
+
+    /**
+     * Remove the listener and the subscription, neither is waited on.
+     */
+    @Override
+    public synchronized void stop() {
+        if(sensorsClient != null){
+            sensorsClient.remove(this)
+                    .addOnFailureListener(e -> Log.w(logTag, "Could not remove listener", e));
+            sensorsClient = null;
+        }
+        if(recordingClient != null){
+            recordingClient.unsubscribe(DataType.TYPE_STEP_COUNT_DELTA)
+                    .addOnFailureListener(e -> Log.w(logTag, "Could not unsubscribe", e));
+            recordingClient = null;
+        }
+    }
+
+    /**
+     * Add a step delta pushed by Google Fit to the count.
+     * @param dataPoint the step delta.
+     */
+    @Override
+    public void onDataPoint(DataPoint dataPoint) {
+        steps.addAndGet(dataPoint.getValue(Field.FIELD_STEPS).asInt());
+    }
+}
@@ -0,0 +1,117 @@
+package com.maxkernchen.walkingalarm;
+
+import android.content.Context;
+
+import com.google.android.gms.auth.api.signin.GoogleSignIn;
+import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * GoogleFitStepSource class counts steps from the daily step total in Google Fit, read through
+ * the Google Play Services history API each time the steps are asked for. Google Fit can lag
+ * behind the steps actually walked by several seconds. No thread waits on a read, the returned
+ * future completes from the Google Play Services callback.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class GoogleFitStepSource implements StepSource {
+
+    // how long to wait in ms for GOOGLE FIT API call to complete
+    private static final int GOOGLE_FIT_FETCH_TIMEOUT = 10000;
+    // application context used to call the Google Fit API.
+    private final Context context;
+    // daily step total when the source was started.
+    private volatile int startingSteps;
+    // the latest Google Fit fetch of the daily total, shared by every caller until it completes.
+    // A Google Play Services task can not be cancelled, so this is the fetch itself rather than
+    // the timeout stage, which would let a timed out fetch run on beside the next one.
+    private CompletableFuture<DataSet> inFlightFetch;
+
+    /**
+     * Constructor for GoogleFitStepSource.
+     * @param context context used to call the Google Fit API.
+     */
+    public GoogleFitStepSource(Context context){
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Read the daily step total to count steps from.
+     * @return future completing once the daily total is read.
+     */
+    @Override
+    public CompletableFuture<Void> start() {
+        return readDailyTotal().thenAccept(dailyTotal -> startingSteps = dailyTotal);
+    }
+
+    /**
+     * Read the daily step total and take away the total when the source was started.
+     * @return future completing with the number of steps walked since start.
+     */
+    @Override
+    public CompletableFuture<Integer> getCurrentSteps() {
+        // the daily total starts again at midnight, so never go below zero.
+        return readDailyTotal().thenApply(dailyTotal -> Math.max(dailyTotal - startingSteps, 0));
+    }
+
+    /**
+     * Nothing is held between reads, so there is nothing to stop.
+     */
+    @Override
+    public void stop() {
+    }
+
+    /**
+     * Read the daily step total once and drop the result, so Google Play Services is bound and
+     * the Google Fit client is ready before an alarm needs it. Any failure is ignored.
+     * @param context context used to call the Google Fit API.
+     */
+    public static void warmUp(Context context){
+        new GoogleFitStepSource(context).readDailyTotal();
+    }
+
+    /**
+     * Helper method which reads the daily step total from Google Fit Api, as a pipeline of
+     * fetch, time out and map to the step count. Only one fetch is ever in flight, if a fetch is
+     * still running, even one an earlier caller has timed out on, it is shared instead of
+     * starting another one. Each caller gets its own timeout.
+     * @return future completing with the steps walked today, or failing with a
+     * StepSourceException if there is no Google account, or the read failed or did not complete
+     * within GOOGLE_FIT_FETCH_TIMEOUT.
+     */
+    private synchronized CompletableFuture<Integer> readDailyTotal() {
+        if(inFlightFetch == null || inFlightFetch.isDone()){
+            GoogleSignInAccount account = GoogleSignIn.getLastSignedInAccount(context);
+            if(account == null)
+                return StepFutures.failed(
+                        new StepSourceException(R.string.could_not_find_account_error));
+
+            inFlightFetch = StepFutures.fromTask(Fitness.getHistoryClient(context, account)
+                    .readDailyTotal(DataType.TYPE_STEP_COUNT_DELTA));
+        }
+        return StepFutures.withTimeout(inFlightFetch, GOOGLE_FIT_FETCH_TIMEOUT)
+                .thenApply(GoogleFitStepSource::toDailyTotal);
+    }
+
+    /**
+     * Helper method which gets the step count out of the daily total data set.
+     * @param dataSet the daily total data set.
+     * @return the steps walked today.
+     */
+    private static int toDailyTotal(DataSet dataSet){
+        // a specific scenario is that the user has not moved their phone
+        // since midnight. In that case the first alarm of the day
+        // would have no steps, so we use zero steps. If this always stays
+        // at zero, eventually we should reach SECONDS_TO_WAIT_FOR_STEPS which will
+        // dismiss the alarm.
+        if(dataSet.getDataPoints().isEmpty())
+            return 0;
+        return dataSet.getDataPoints().get(0).getValue(Field.FIELD_STEPS).asInt();
+    }
+}
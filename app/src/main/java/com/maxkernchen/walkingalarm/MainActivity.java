@@ -9,11 +9,13 @@ import android.content.Intent;
 
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.media.Ringtone;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.StrictMode;
+import android.os.SystemClock;
 import android.Manifest;
 
 import com.google.android.gms.auth.api.signin.GoogleSignIn;
@@ -44,11 +46,15 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.maxkernchen.walkingalarm.databinding.ActivityMainBinding;
 
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Toast;
 
 import java.util.Calendar;
+import java.util.Locale;
 
 /**
  * MainActivity for our app, will init our AlarmListAdapter and listeners for the floating action
@@ -60,6 +66,17 @@ import java.util.Calendar;
 public class MainActivity extends AppCompatActivity {
 
     private static final int PERMISSION_REQUEST_CODE = 2;
+    // log tag for logging.
+    private static final String logTag = "MainActivity";
+    // uptime in ms startup is timed from, the process start if the process was started to show
+    // this activity, else onCreate.
+    private long startUptimeMillis;
+    // uptime in ms the first frame was drawn, -1 until it is.
+    private long firstFrameUptimeMillis = -1;
+    // uptime in ms the alarms were shown and the list became interactive, -1 until it is.
+    private long interactiveUptimeMillis = -1;
+    // true once the startup times have been reported.
+    private boolean startupReported = false;
     /**
      * Singleton AlarmListAdapter which can be called from other classes, and
      * is central location for storing our list of Alarms.
@@ -70,9 +87,9 @@ public class MainActivity extends AppCompatActivity {
      */
     private final static int GOOGLE_SIGN_IN_REQUEST_CODE = 1;
     /**
-     * global var for storing which item has clicked the sound picker.
+     * global var for storing the minute of the day of the item which clicked the sound picker.
      */
-    public static int currentItemIndexSoundPick = -1;
+    public static int currentAlarmTimeSoundPick = -1;
     /**
      * static bool for check if the system is currently in 24hour time.
      */
@@ -85,58 +102,38 @@ public class MainActivity extends AppCompatActivity {
 
     /**
      * OnCreate which will inflate our layout and assign any listeners.
-     * At the end will also trigger a google sign intent if the application has been installed
-     * for the first time
+     * The alarms are loaded in the background and shown once read, and once the first frame is
+     * drawn permissions are checked and a google sign intent is triggered if the application has
+     * been installed for the first time
      * @param savedInstanceState no saved bundles used here
      */
     @Override
     public void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-
-        // get permissions based on SDK version
-        String[] permissionsStr;
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            permissionsStr = new String[]{Manifest.permission.FOREGROUND_SERVICE,
-                    //33
-                    Manifest.permission.POST_NOTIFICATIONS,
-                    Manifest.permission.DISABLE_KEYGUARD,
-                    Manifest.permission.RECEIVE_BOOT_COMPLETED,
-                    Manifest.permission.DISABLE_KEYGUARD,
-                    Manifest.permission.ACTIVITY_RECOGNITION,
-                    Manifest.permission.USE_FULL_SCREEN_INTENT,
-                    Manifest.permission.WAKE_LOCK};
-        }
-        else if(Build.VERSION.SDK_INT > Build.VERSION_CODES.P){
-            permissionsStr = new String[]{Manifest.permission.FOREGROUND_SERVICE,
-                    Manifest.permission.DISABLE_KEYGUARD,
-                    Manifest.permission.RECEIVE_BOOT_COMPLETED,
-                    Manifest.permission.DISABLE_KEYGUARD,
-                    Manifest.permission.ACTIVITY_RECOGNITION,
-                    Manifest.permission.USE_FULL_SCREEN_INTENT,
-                    Manifest.permission.WAKE_LOCK};
-        }
-        else{
-            permissionsStr = new String[]{Manifest.permission.FOREGROUND_SERVICE,
-                    Manifest.permission.DISABLE_KEYGUARD,
-                    Manifest.permission.RECEIVE_BOOT_COMPLETED,
-                    Manifest.permission.DISABLE_KEYGUARD,
-                    Manifest.permission.WAKE_LOCK};
+        startUptimeMillis = WalkingAlarmApplication.takeColdLaunch() ?
+                Process.getStartUptimeMillis() : SystemClock.uptimeMillis();
+        if(BuildConfig.DEBUG){
+            // catch any disk or network access left on the main thread.
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
         }
-
-
-       if (!checkAllPermissions(this,permissionsStr)) {
-            requestPermissions(permissionsStr,
-                    PERMISSION_REQUEST_CODE);
+        // the theme must be set before the activity is created, or it is created twice, so this
+        // one small settings read is left on the main thread.
+        StrictMode.ThreadPolicy threadPolicy = StrictMode.allowThreadDiskReads();
+        try {
+            this.setThemeOnStart();
+        } finally {
+            StrictMode.setThreadPolicy(threadPolicy);
         }
+        super.onCreate(savedInstanceState);
 
         ActivityMainBinding binding =
                 ActivityMainBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
         setSupportActionBar(binding.toolbar);
-        // find shared prefs to assign to new AlarmListAdapter
-        SharedPreferences prefs = this.getSharedPreferences(getString(R.string.shared_prefs_key),
-                Context.MODE_PRIVATE);
-
         RecyclerView rvAlarmListView = (RecyclerView) findViewById(R.id.alarmListView);
         // disable animations on changes, else it will flash toggle buttons for every update.
         RecyclerView.ItemAnimator itemAnimator = rvAlarmListView.getItemAnimator();
@@ -144,13 +141,35 @@ public class MainActivity extends AppCompatActivity {
             itemAnimator.setChangeDuration(0);
         }
 
-        AlarmListAdapter alarmListAdapter = new AlarmListAdapter(
-                prefs);
+        AlarmListAdapter alarmListAdapter = new AlarmListAdapter(this);
         rvAlarmListView.setAdapter(alarmListAdapter);
         rvAlarmListView.setLayoutManager(new LinearLayoutManager(this));
-
+        // the empty list is shown at once, alarms can be added once the stored ones are loaded
+        // in the background, which also arms the next alarm.
+        binding.fab.setEnabled(false);
+        alarmListAdapter.loadAlarms(() -> {
+            binding.fab.setEnabled(true);
+            interactiveUptimeMillis = SystemClock.uptimeMillis();
+            reportStartupTimes();
+        });
+        // permission and google sign in checks are not needed to draw, so wait for first frame.
+        View content = binding.getRoot();
+        content.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            @Override
+            public void onDraw() {
+                if(firstFrameUptimeMillis >= 0)
+                    return;
+                firstFrameUptimeMillis = SystemClock.uptimeMillis();
+                // listeners can not be removed while drawing, so remove it after.
+                content.post(() -> {
+                    content.getViewTreeObserver().removeOnDrawListener(this);
+                    onFirstFrame();
+                });
+            }
+        });
 
         is24HourTime = DateFormat.is24HourFormat(this);
+        AlarmLabels.configure(is24HourTime, Locale.getDefault());
         // add listener to floating action button which will pop up a TimePickerDialog.
         binding.fab.setOnClickListener(view -> {
             final Calendar cldr = Calendar.getInstance();
@@ -185,26 +204,124 @@ public class MainActivity extends AppCompatActivity {
                 });
 
         singletonAlarmListAdapter = alarmListAdapter;
+    }
 
-        // set theme, start service, and sign into google
-        this.setThemeOnStart();
-        if(!AlarmService.isRunning) {
-            Intent myService = new Intent(this, AlarmService.class);
-            startForegroundService(myService);
+    /**
+     * Called once the first frame is drawn, checks permissions and signs into google, which
+     * are binder calls not needed to show the alarms.
+     */
+    private void onFirstFrame(){
+        reportStartupTimes();
+        if(isDestroyed())
+            return;
+        // get permissions based on SDK version
+        String[] permissionsStr;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            permissionsStr = new String[]{Manifest.permission.FOREGROUND_SERVICE,
+                    //33
+                    Manifest.permission.POST_NOTIFICATIONS,
+                    Manifest.permission.DISABLE_KEYGUARD,
+                    Manifest.permission.RECEIVE_BOOT_COMPLETED,
+                    Manifest.permission.DISABLE_KEYGUARD,
+                    Manifest.permission.ACTIVITY_RECOGNITION,
+                    Manifest.permission.USE_FULL_SCREEN_INTENT,
+                    Manifest.permission.WAKE_LOCK};
+        }
+        else if(Build.VERSION.SDK_INT > Build.VERSION_CODES.P){
+            permissionsStr = new String[]{Manifest.permission.FOREGROUND_SERVICE,
+                    Manifest.permission.DISABLE_KEYGUARD,
+                    Manifest.permission.RECEIVE_BOOT_COMPLETED,
+                    Manifest.permission.DISABLE_KEYGUARD,
+                    Manifest.permission.ACTIVITY_RECOGNITION,
+                    Manifest.permission.USE_FULL_SCREEN_INTENT,
+                    Manifest.permission.WAKE_LOCK};
         }
+        else{
+            permissionsStr = new String[]{Manifest.permission.FOREGROUND_SERVICE,
+                    Manifest.permission.DISABLE_KEYGUARD,
+                    Manifest.permission.RECEIVE_BOOT_COMPLETED,
+                    Manifest.permission.DISABLE_KEYGUARD,
+                    Manifest.permission.WAKE_LOCK};
+        }
+
+
+       if (!checkAllPermissions(this,permissionsStr)) {
+            requestPermissions(permissionsStr,
+                    PERMISSION_REQUEST_CODE);
+        }
+        // no alarm is armed without exact alarms, which the user can revoke on API 31 and 32.
+        if(!AlarmScheduler.canScheduleExactAlarms(this))
+            showExactAlarmDialog();
         googleSignIn();
     }
 
+    /**
+     * Helper method which tells the user alarms will not ring without exact alarms, and sends
+     * them to the settings page to allow them. The AlarmReceiver arms the next alarm once they
+     * are allowed.
+     */
+    private void showExactAlarmDialog(){
+        new MaterialAlertDialogBuilder(this, R.style.SettingsDialogRounded)
+                .setIcon(R.drawable.ic_walk_action_foreground)
+                .setMessage(R.string.no_exact_alarm_permission)
+                .setPositiveButton(R.string.go_to_permission_settings,
+                        (dialogInterface, i) -> {
+                            Intent intent = new Intent(
+                                    Settings.ACTION_REQUEST_SCHEDULE_EXACT_ALARM,
+                                    Uri.fromParts("package", getPackageName(), null));
+                            startActivity(intent);
+                        })
+                .setNegativeButton(R.string.cancel_dialog,
+                        (dialogInterface, i) -> {
+                            // empty method to dismiss dialog.
+                        })
+                .show();
+    }
+
+    /**
+     * Helper method which logs the time to first frame and time to interactive once both are
+     * known, timed from the process start on a cold start, and tells the system the activity is
+     * fully drawn.
+     */
+    private void reportStartupTimes(){
+        if(startupReported || firstFrameUptimeMillis < 0 || interactiveUptimeMillis < 0)
+            return;
+        startupReported = true;
+        long timeToInteractive = Math.max(firstFrameUptimeMillis, interactiveUptimeMillis);
+        Log.i(logTag, "Time to first frame " + (firstFrameUptimeMillis - startUptimeMillis) +
+                " ms, time to interactive " + (timeToInteractive - startUptimeMillis) + " ms");
+        reportFullyDrawn();
+    }
+
+    /**
+     * Save any alarm changes still waiting in the AlarmWriter, as the app may be killed once
+     * it is in the background.
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if(singletonAlarmListAdapter != null)
+            singletonAlarmListAdapter.flushPendingWrites();
+    }
+
     /**
      * The Uri we found from the RingtoneManager intent result, to be assign to an alarm item
      * @param alarmUri the Uri to assign to a alarm item.
      */
     private void updateAlarmSoundForCurrentItem (Uri alarmUri){
         if(alarmUri != null) {
-            Ringtone ringtone = RingtoneManager.getRingtone(this, alarmUri);
-            String alarmName = ringtone.getTitle(this);
-            singletonAlarmListAdapter.updateAlarmSound(currentItemIndexSoundPick, alarmUri,
-                    alarmName);
+            // the title is looked up off the main thread, from the cache if it was picked before.
+            final int alarmTime = currentAlarmTimeSoundPick;
+            RingtoneResolver.getInstance(this).resolve(alarmUri.toString(), info -> {
+                if(!info.isValid()){
+                    Toast.makeText(getApplicationContext(), R.string.alarm_sound_invalid_error,
+                            Toast.LENGTH_LONG).show();
+                    return;
+                }
+                if(singletonAlarmListAdapter != null)
+                    singletonAlarmListAdapter.updateAlarmSound(alarmTime, alarmUri,
+                            info.getTitle());
+            });
         }
     }
 
@@ -221,8 +338,8 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * when an item is select from the menu, in this case there is also one item.
-     * So it will send us to the SettingsActivity
+     * when an item is select from the menu, either send us to the SettingsActivity or fire a
+     * test alarm now, which reports how long each stage of the alarm took once it is dismissed.
      * @param item the menu selected
      * @return true to consume event.
      */
@@ -240,6 +357,10 @@ public class MainActivity extends AppCompatActivity {
             startActivity(settingsIntent);
             return true;
         }
+        if (id == R.id.action_test_alarm) {
+            AlarmScheduler.scheduleTestAlarm(this);
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
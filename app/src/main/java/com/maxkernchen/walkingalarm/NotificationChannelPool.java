@@ -0,0 +1,221 @@
+package com.maxkernchen.walkingalarm;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioAttributes;
+import android.net.Uri;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * NotificationChannelPool class hands out the notification channel an alarm rings on. The sound
+ * and vibration of a channel can not be changed once it is created, so there is one channel for
+ * each mix of sound, vibration and vibration pattern, with an id made from a SHA-256 digest of
+ * them. A plain hash could give two mixes the same id, and an alarm would then ring with the
+ * other alarm's sound or vibration. An alarm reuses the channel of any earlier alarm with the
+ * same settings, so ringing an alarm usually does not create a channel at all.
+ *
+ * Channels are kept in least recently used order, stored in shared preferences so the pool
+ * outlives the process. Once there are more than MAX_CHANNELS the least recently used channels
+ * are deleted, so the channels the system holds for the app stay bounded.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class NotificationChannelPool {
+
+    // most channels kept before the least recently used are deleted.
+    private static final int MAX_CHANNELS = 8;
+    // name of the shared preferences holding the last time each channel was used.
+    private static final String PREFS_NAME = "notification_channel_pool";
+    // number of bytes of the digest used in a channel id, 128 bits so ids never collide.
+    private static final int ID_DIGEST_BYTES = 16;
+    // length of a channel id, the channel id prefix, a separator then the digest in hex.
+    private static final int CHANNEL_ID_LENGTH =
+            AlarmFullScreen.CHANNEL_ID.length() + 1 + ID_DIGEST_BYTES * 2;
+    // log tag for logging.
+    private static final String logTag = "NotificationChannelPool";
+    // single instance of the pool shared by the whole process.
+    private static NotificationChannelPool instance;
+    // the notification manager channels are created and deleted with.
+    private final NotificationManager notificationManager;
+    // stores the last time each channel was used.
+    private final SharedPreferences prefs;
+    // channel ids to the last time they were used, least recently used first. null until the
+    // pool is first used.
+    private LinkedHashMap<String, Long> channels;
+
+    /**
+     * Constructor for NotificationChannelPool.
+     * @param context context used to find the notification manager and shared preferences.
+     */
+    private NotificationChannelPool(Context context){
+        this.notificationManager = context.getSystemService(NotificationManager.class);
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Get the process wide NotificationChannelPool, creating it on first use.
+     * @param context any context, the application context is kept.
+     * @return the NotificationChannelPool instance.
+     */
+    public static synchronized NotificationChannelPool getInstance(Context context){
+        if(instance == null){
+            instance = new NotificationChannelPool(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Get the id of the channel for an alarm sound and vibration, creating the channel only if
+     * no earlier alarm used the same settings.
+     * @param soundUri the uri of the alarm sound.
+     * @param vibrate true if the alarm should vibrate.
+     * @param vibrationPattern the pattern to vibrate with, only used if vibrate is true.
+     * @return the id of the channel to post the alarm notification to.
+     */
+    public synchronized String getChannelId(String soundUri, boolean vibrate,
+                                            long[] vibrationPattern){
+        load();
+        String channelId = channelIdFor(soundUri, vibrate, vibrationPattern);
+        // remove then put so the channel moves to the most recently used end.
+        if(channels.remove(channelId) == null)
+            createChannel(channelId, soundUri, vibrate, vibrationPattern);
+        long now = System.currentTimeMillis();
+        channels.put(channelId, now);
+        SharedPreferences.Editor editor = prefs.edit().putLong(channelId, now);
+        evict(editor);
+        editor.apply();
+        return channelId;
+    }
+
+    /**
+     * Helper method which makes the channel id for an alarm sound and vibration, from a digest
+     * of every setting so different settings never share a channel.
+     * @param soundUri the uri of the alarm sound.
+     * @param vibrate true if the alarm should vibrate.
+     * @param vibrationPattern the pattern to vibrate with, only used if vibrate is true.
+     * @return the channel id.
+     */
+    private static String channelIdFor(String soundUri, boolean vibrate,
+                                       long[] vibrationPattern){
+        // a uri can not hold a new line, so no two mixes of settings give the same key.
+        String key = soundUri + "\n" + vibrate + "\n" +
+                (vibrate ? Arrays.toString(vibrationPattern) : "");
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // every Android release has SHA-256.
+            throw new IllegalStateException(e);
+        }
+        StringBuilder channelId = new StringBuilder(CHANNEL_ID_LENGTH)
+                .append(AlarmFullScreen.CHANNEL_ID).append('_');
+        for(int i = 0; i < ID_DIGEST_BYTES; i++){
+            channelId.append(String.format("%02x", digest[i]));
+        }
+        return channelId.toString();
+    }
+
+    /**
+     * Helper method which reads the pool the first time it is needed, and matches it against
+     * the channels the system holds. Alarm channels the pool does not know, such as those left
+     * by older versions which made a channel for every alarm or ids made from a plain hash, are
+     * deleted, and channels the system no longer holds are dropped from the pool.
+     */
+    private void load(){
+        if(channels != null)
+            return;
+
+        SharedPreferences.Editor editor = prefs.edit();
+        List<Map.Entry<String, Long>> stored = new ArrayList<>();
+        for(Map.Entry<String, ?> entry : prefs.getAll().entrySet()){
+            if(entry.getValue() instanceof Long && entry.getKey().length() == CHANNEL_ID_LENGTH)
+                stored.add(new AbstractMap.SimpleEntry<>(entry.getKey(),
+                        (Long) entry.getValue()));
+            else
+                editor.remove(entry.getKey());
+        }
+        stored.sort(Map.Entry.comparingByValue());
+        channels = new LinkedHashMap<>();
+        for(Map.Entry<String, Long> entry : stored){
+            channels.put(entry.getKey(), entry.getValue());
+        }
+
+        Set<String> systemChannelIds = new HashSet<>();
+        for(NotificationChannel channel : notificationManager.getNotificationChannels()){
+            String channelId = channel.getId();
+            if(!channelId.startsWith(AlarmFullScreen.CHANNEL_ID))
+                continue;
+            if(channels.containsKey(channelId)){
+                systemChannelIds.add(channelId);
+            }
+            else {
+                Log.d(logTag, "Deleting unknown alarm channel " + channelId);
+                notificationManager.deleteNotificationChannel(channelId);
+            }
+        }
+        channels.keySet().removeIf(channelId -> {
+            if(systemChannelIds.contains(channelId))
+                return false;
+            editor.remove(channelId);
+            return true;
+        });
+        evict(editor);
+        editor.apply();
+    }
+
+    /**
+     * Helper method which deletes the least recently used channels past MAX_CHANNELS.
+     * @param editor editor to remove the deleted channels from the shared preferences with.
+     */
+    private void evict(SharedPreferences.Editor editor){
+        Iterator<String> leastRecentlyUsed = channels.keySet().iterator();
+        while(channels.size() > MAX_CHANNELS){
+            String channelId = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            editor.remove(channelId);
+            notificationManager.deleteNotificationChannel(channelId);
+        }
+    }
+
+    /**
+     * Helper method which creates a high importance alarm channel with a sound, and vibration
+     * if it is enabled.
+     * @param channelId the id of the channel.
+     * @param soundUri the uri of the alarm sound.
+     * @param vibrate true if the alarm should vibrate.
+     * @param vibrationPattern the pattern to vibrate with, only used if vibrate is true.
+     */
+    private void createChannel(String channelId, String soundUri, boolean vibrate,
+                               long[] vibrationPattern){
+        final AudioAttributes audioAttributes = new AudioAttributes.Builder()
+                .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                .setUsage(AudioAttributes.USAGE_ALARM)
+                .build();
+
+        NotificationChannel channel = new NotificationChannel(channelId,
+                AlarmFullScreen.CHANNEL_NAME, NotificationManager.IMPORTANCE_HIGH);
+        channel.setDescription(AlarmFullScreen.CHANNEL_DESCRIPTION);
+        channel.enableVibration(vibrate);
+        if(vibrate)
+            channel.setVibrationPattern(vibrationPattern);
+        channel.setSound(Uri.parse(soundUri), audioAttributes);
+        notificationManager.createNotificationChannel(channel);
+    }
+}
@@ -0,0 +1,141 @@
+package com.maxkernchen.walkingalarm;
+
+import android.app.Notification;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * PreparedAlarm class holds the work for showing an alarm done ahead of its fire time. The
+ * AlarmScheduler arms a pre-arm alarm PRE_ARM_LEAD_MS before the next alarm, and the
+ * AlarmReceiver then prepares it off the main thread, checking the ringtone, getting the
+ * notification channel, building the notification and its PendingIntent, and warming the
+ * Google Fit client. Once the alarm fires the AlarmService takes the prepared alarm, so all
+ * that is left is to post the notification.
+ *
+ * Only the next alarm is ever prepared, and it is only used if the alarm and its settings are
+ * unchanged since, otherwise the AlarmService builds the notification itself as before.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class PreparedAlarm {
+
+    /**
+     * How long in ms before the next alarm fires it is prepared.
+     */
+    public static final long PRE_ARM_LEAD_MS = 60 * 1000L;
+    // the prepared alarm waiting for its fire time, null if there is none.
+    private static PreparedAlarm prepared;
+    // id of the alarm which was prepared.
+    private final long alarmId;
+    // time in millis the alarm will fire.
+    private final long fireTimeMillis;
+    // sound uri stored on the alarm, before it was resolved.
+    private final String soundUri;
+    // true if vibration was enabled when the alarm was prepared.
+    private final boolean vibrate;
+    // steps to dismiss shown in the notification.
+    private final int stepsToDismiss;
+    // id of the channel from the NotificationChannelPool the notification is posted to.
+    private final String channelId;
+    // the built alarm notification, ready to be posted.
+    private final Notification notification;
+
+    /**
+     * Constructor for PreparedAlarm.
+     * @param alarmId id of the alarm which was prepared.
+     * @param fireTimeMillis time in millis the alarm will fire.
+     * @param soundUri sound uri stored on the alarm.
+     * @param vibrate true if vibration was enabled.
+     * @param stepsToDismiss steps to dismiss shown in the notification.
+     * @param channelId id of the channel the notification is posted to.
+     * @param notification the built alarm notification.
+     */
+    private PreparedAlarm(long alarmId, long fireTimeMillis, String soundUri, boolean vibrate,
+                          int stepsToDismiss, String channelId, Notification notification){
+        this.alarmId = alarmId;
+        this.fireTimeMillis = fireTimeMillis;
+        this.soundUri = soundUri;
+        this.vibrate = vibrate;
+        this.stepsToDismiss = stepsToDismiss;
+        this.channelId = channelId;
+        this.notification = notification;
+    }
+
+    /**
+     * Prepare the next alarm, if it is due at the fire time the pre-arm alarm was armed for.
+     * Does disk and binder work, so must not be called on the main thread.
+     * @param context context used to find the alarm, settings and system services.
+     * @param fireTimeMillis the time in millis the pre-arm alarm was armed for the alarm to fire.
+     */
+    public static void prepare(Context context, long fireTimeMillis){
+        List<AlarmStore.UpcomingAlarm> nextAlarms = AlarmStore.getInstance(context)
+                .getNextAlarms(System.currentTimeMillis(), 1);
+        if(nextAlarms.isEmpty() || nextAlarms.get(0).getFireTimeMillis() != fireTimeMillis)
+            return;
+
+        AlarmItem alarm = nextAlarms.get(0).getAlarmItem();
+        SharedPreferences settingsPref = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean vibrate = AlarmService.isVibrationEnabled(settingsPref);
+        int stepsToDismiss = AlarmService.getStepsToDismiss(settingsPref);
+        // look the sound up again now, so a sound which was deleted is found before the alarm
+        // fires and the default alarm sound is used rather than a silent alarm.
+        String channelId = NotificationChannelPool.getInstance(context).getChannelId(
+                RingtoneResolver.getInstance(context).checkPlayableSoundUri(
+                        alarm.getAlarmSoundUri()), vibrate, AlarmFullScreen.VIBRATION_PATTERN);
+        Notification notification = AlarmFullScreen.buildFullScreenNotification(context,
+                alarm.getAlarmName(), channelId, stepsToDismiss);
+
+        String stepSourceSetting = settingsPref.getString(
+                SettingsActivity.SettingsFragment.STEP_SOURCE_KEY,
+                SettingsActivity.SettingsFragment.STEP_SOURCE_GOOGLE_FIT);
+        if(!SettingsActivity.SettingsFragment.STEP_SOURCE_SENSOR.equals(stepSourceSetting))
+            GoogleFitStepSource.warmUp(context);
+
+        synchronized (PreparedAlarm.class) {
+            prepared = new PreparedAlarm(alarm.getId(), fireTimeMillis, alarm.getAlarmSoundUri(),
+                    vibrate, stepsToDismiss, channelId, notification);
+        }
+    }
+
+    /**
+     * Take the prepared alarm for an alarm which is firing, it can only be taken once.
+     * @param alarmId id of the alarm which is firing.
+     * @param fireTimeMillis time in millis the alarm was armed for.
+     * @param soundUri sound uri stored on the alarm.
+     * @param vibrate true if vibration is enabled.
+     * @param stepsToDismiss steps needed to dismiss the alarm.
+     * @return the prepared alarm, or null if the alarm was not prepared or anything shown in
+     * the notification has changed since.
+     */
+    public static synchronized PreparedAlarm take(long alarmId, long fireTimeMillis,
+                                                  String soundUri, boolean vibrate,
+                                                  int stepsToDismiss){
+        PreparedAlarm taken = prepared;
+        prepared = null;
+        if(taken == null || taken.alarmId != alarmId || taken.fireTimeMillis != fireTimeMillis ||
+                !Objects.equals(taken.soundUri, soundUri) || taken.vibrate != vibrate ||
+                taken.stepsToDismiss != stepsToDismiss)
+            return null;
+        return taken;
+    }
+
+    /**
+     * @return id of the channel the notification is posted to.
+     */
+    public String getChannelId(){
+        return channelId;
+    }
+
+    /**
+     * @return the built alarm notification, ready to be posted.
+     */
+    public Notification getNotification(){
+        return notification;
+    }
+}
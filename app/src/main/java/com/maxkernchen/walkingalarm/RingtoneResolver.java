@@ -0,0 +1,391 @@
+package com.maxkernchen.walkingalarm;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
+import android.media.MediaMetadataRetriever;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * RingtoneResolver class looks up the title, duration and if an alarm sound can still be
+ * played, which are content resolver queries that can take tens of ms, so they are never done
+ * on the main thread. Each sound is looked up once and kept in a cache stored in shared
+ * preferences, so it outlives the process. Once media on the device changes, such as a ringtone
+ * being deleted, every cached sound is looked up again, so a sound which can no longer be
+ * played is found before its alarm fires rather than leaving the alarm silent.
+ *
+ * The cache is only touched on the resolver thread. As an alarm fires its sound is read from the
+ * stored cache entry without waiting on the resolver thread, and only if there is no entry is
+ * the sound opened, on its own thread and for at most FIRE_CHECK_TIMEOUT_MS, so looking up a
+ * sound never holds up an alarm ringing.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class RingtoneResolver {
+
+    /**
+     * Callback for a sound which was looked up, called on the main thread.
+     */
+    public interface Callback {
+        /**
+         * Called once the sound is looked up.
+         * @param info what was found for the sound.
+         */
+        void onResolved(RingtoneInfo info);
+    }
+
+    /**
+     * What was found for an alarm sound.
+     */
+    public static class RingtoneInfo {
+        // title of the sound shown to the user, null if the sound can not be played.
+        private final String title;
+        // true if the sound could be opened.
+        private final boolean valid;
+        // length of the sound in ms, -1 if it is not known.
+        private final long durationMs;
+
+        /**
+         * Constructor for RingtoneInfo.
+         * @param title title of the sound.
+         * @param valid true if the sound could be opened.
+         * @param durationMs length of the sound in ms.
+         */
+        private RingtoneInfo(String title, boolean valid, long durationMs){
+            this.title = title;
+            this.valid = valid;
+            this.durationMs = durationMs;
+        }
+
+        /**
+         * @return title of the sound shown to the user, null if the sound can not be played.
+         */
+        public String getTitle(){
+            return title;
+        }
+
+        /**
+         * @return true if the sound could be opened.
+         */
+        public boolean isValid(){
+            return valid;
+        }
+
+        /**
+         * @return length of the sound in ms, -1 if it is not known.
+         */
+        public long getDurationMs(){
+            return durationMs;
+        }
+    }
+
+    // name of the shared preferences holding the cache.
+    private static final String PREFS_NAME = "ringtone_cache";
+    // name of the thread sounds are looked up on.
+    private static final String RESOLVER_THREAD_NAME = "RingtoneResolver";
+    // name of the thread a sound with no cache entry is opened on as its alarm fires.
+    private static final String FIRE_CHECK_THREAD_NAME = "RingtoneFireCheck";
+    // longest time in ms to wait for a sound to open as its alarm fires, before the default
+    // alarm sound is used.
+    private static final long FIRE_CHECK_TIMEOUT_MS = 200;
+    // time in ms to wait for media changes to stop before looking up the cached sounds again,
+    // a media scan reports many changes in a row.
+    private static final long REFRESH_DELAY_MS = 2000;
+    // log tag for logging.
+    private static final String logTag = "RingtoneResolver";
+    // single instance of the resolver shared by the whole process.
+    private static RingtoneResolver instance;
+    // the application context.
+    private final Context context;
+    // stores the cache.
+    private final SharedPreferences prefs;
+    // single thread sounds are looked up on.
+    private final ExecutorService resolverExecutor;
+    // single thread a sound with no cache entry is opened on as its alarm fires, apart from the
+    // resolver thread so it never waits behind a refresh.
+    private final ExecutorService fireCheckExecutor;
+    // handler for the main thread, callbacks are posted to it.
+    private final Handler mainHandler;
+    // runnable which looks up the cached sounds again once media changes stop.
+    private final Runnable refreshRunnable;
+    // sound uris to what was found for them, null until first used.
+    private Map<String, RingtoneInfo> cache;
+
+    /**
+     * Constructor for RingtoneResolver, starts watching for media changes.
+     * @param context the application context.
+     */
+    private RingtoneResolver(Context context){
+        this.context = context;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.resolverExecutor = Executors.newSingleThreadExecutor(
+                runnable -> new Thread(runnable, RESOLVER_THREAD_NAME));
+        this.fireCheckExecutor = Executors.newSingleThreadExecutor(
+                runnable -> new Thread(runnable, FIRE_CHECK_THREAD_NAME));
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.refreshRunnable = () -> resolverExecutor.execute(this::refresh);
+
+        ContentObserver mediaObserver = new ContentObserver(mainHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mainHandler.removeCallbacks(refreshRunnable);
+                mainHandler.postDelayed(refreshRunnable, REFRESH_DELAY_MS);
+            }
+        };
+        ContentResolver contentResolver = context.getContentResolver();
+        contentResolver.registerContentObserver(MediaStore.Audio.Media.INTERNAL_CONTENT_URI,
+                true, mediaObserver);
+        contentResolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                true, mediaObserver);
+        contentResolver.registerContentObserver(Settings.System.DEFAULT_ALARM_ALERT_URI,
+                false, mediaObserver);
+    }
+
+    /**
+     * Get the process wide RingtoneResolver, creating it on first use.
+     * @param context any context, the application context is kept.
+     * @return the RingtoneResolver instance.
+     */
+    public static synchronized RingtoneResolver getInstance(Context context){
+        if(instance == null){
+            instance = new RingtoneResolver(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Look up a sound in the background, from the cache if it was looked up before.
+     * @param soundUri the uri of the sound.
+     * @param callback called on the main thread with what was found.
+     */
+    public void resolve(String soundUri, Callback callback){
+        resolverExecutor.execute(() -> {
+            RingtoneInfo info = get(soundUri);
+            mainHandler.post(() -> callback.onResolved(info));
+        });
+    }
+
+    /**
+     * Get a sound which can be played for an alarm as it fires. The stored cache entry is used
+     * if there is one, otherwise the sound is only opened, waiting at most
+     * FIRE_CHECK_TIMEOUT_MS, and looked up in full later on the resolver thread.
+     * Must not be called on the main thread.
+     * @param soundUri the uri of the sound stored on the alarm.
+     * @return the sound uri, or the default alarm sound if it can not be played.
+     */
+    public String getPlayableSoundUri(String soundUri){
+        RingtoneInfo cached = decode(prefs.getString(soundUri, null));
+        if(cached != null)
+            return cached.isValid() ? soundUri : defaultSoundUri(soundUri);
+
+        resolverExecutor.execute(() -> get(soundUri));
+        Future<Boolean> opened = fireCheckExecutor.submit(() -> canOpen(Uri.parse(soundUri)));
+        try {
+            if(opened.get(FIRE_CHECK_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                return soundUri;
+        } catch (ExecutionException e) {
+            Log.w(logTag, "Could not open alarm sound " + soundUri, e);
+        } catch (TimeoutException e) {
+            opened.cancel(true);
+            Log.w(logTag, "Timed out opening alarm sound " + soundUri);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return defaultSoundUri(soundUri);
+    }
+
+    /**
+     * Look up a sound again, ignoring the cache, and get a sound which can be played for an
+     * alarm. Used shortly before an alarm fires, as media may have changed while the app was
+     * not running to see it. Must not be called on the main thread.
+     * @param soundUri the uri of the sound stored on the alarm.
+     * @return the sound uri, or the default alarm sound if it can not be played.
+     */
+    public String checkPlayableSoundUri(String soundUri){
+        try {
+            if(resolverExecutor.submit(() -> {
+                RingtoneInfo info = lookUp(soundUri);
+                put(soundUri, info);
+                return info;
+            }).get().isValid())
+                return soundUri;
+        } catch (ExecutionException e) {
+            Log.w(logTag, "Could not look up alarm sound " + soundUri, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return defaultSoundUri(soundUri);
+    }
+
+    /**
+     * Helper method which gets the default alarm sound, for a sound which can not be played.
+     * @param soundUri the uri of the sound which can not be played.
+     * @return the default alarm sound uri.
+     */
+    private static String defaultSoundUri(String soundUri){
+        Log.w(logTag, "Alarm sound " + soundUri + " can not be played, using the default");
+        return RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM).toString();
+    }
+
+    /**
+     * Helper method which gets a sound from the cache, looking it up and storing it if it is
+     * not there. Only called on the resolver thread.
+     * @param soundUri the uri of the sound.
+     * @return what was found for the sound.
+     */
+    private RingtoneInfo get(String soundUri){
+        load();
+        RingtoneInfo info = cache.get(soundUri);
+        if(info == null){
+            info = lookUp(soundUri);
+            put(soundUri, info);
+        }
+        return info;
+    }
+
+    /**
+     * Helper method which stores what was found for a sound in the cache. Only called on the
+     * resolver thread.
+     * @param soundUri the uri of the sound.
+     * @param info what was found for the sound.
+     */
+    private void put(String soundUri, RingtoneInfo info){
+        load();
+        cache.put(soundUri, info);
+        prefs.edit().putString(soundUri, encode(info)).apply();
+    }
+
+    /**
+     * Helper method which looks up every cached sound again, after media changed. Only called
+     * on the resolver thread.
+     */
+    private void refresh(){
+        load();
+        List<String> soundUris = new ArrayList<>(cache.keySet());
+        SharedPreferences.Editor editor = prefs.edit();
+        for(String soundUri : soundUris){
+            RingtoneInfo info = lookUp(soundUri);
+            cache.put(soundUri, info);
+            editor.putString(soundUri, encode(info));
+        }
+        editor.apply();
+    }
+
+    /**
+     * Helper method which reads the cache the first time it is needed, entries which can not be
+     * read are dropped and looked up again when next used.
+     */
+    private void load(){
+        if(cache != null)
+            return;
+        cache = new HashMap<>();
+        for(Map.Entry<String, ?> entry : prefs.getAll().entrySet()){
+            RingtoneInfo info = entry.getValue() instanceof String ?
+                    decode((String) entry.getValue()) : null;
+            if(info != null)
+                cache.put(entry.getKey(), info);
+            else
+                Log.w(logTag, "Dropping unreadable ringtone cache entry " + entry.getKey());
+        }
+    }
+
+    /**
+     * Helper method which decodes a cache entry stored in the shared preferences.
+     * @param encoded the entry as valid, duration then title, may be null.
+     * @return what was found for the sound, or null if there is no entry or it can not be read.
+     */
+    private static RingtoneInfo decode(String encoded){
+        if(encoded == null)
+            return null;
+        // the title may hold commas so is last.
+        String[] values = encoded.split(",", 3);
+        if(values.length != 3)
+            return null;
+        try {
+            boolean valid = Boolean.parseBoolean(values[0]);
+            return new RingtoneInfo(valid ? values[2] : null, valid, Long.parseLong(values[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Helper method which encodes a cache entry to store in the shared preferences.
+     * @param info what was found for the sound.
+     * @return the entry as valid, duration then title.
+     */
+    private static String encode(RingtoneInfo info){
+        return info.valid + "," + info.durationMs + "," +
+                (info.title == null ? "" : info.title);
+    }
+
+    /**
+     * Helper method which opens a sound to check it can be played, then gets its title and
+     * duration. Does content resolver queries, so only called on the resolver thread.
+     * @param soundUri the uri of the sound.
+     * @return what was found for the sound.
+     */
+    private RingtoneInfo lookUp(String soundUri){
+        Uri uri = Uri.parse(soundUri);
+        if(!canOpen(uri))
+            return new RingtoneInfo(null, false, -1);
+
+        Ringtone ringtone = RingtoneManager.getRingtone(context, uri);
+        String title = ringtone != null ? ringtone.getTitle(context) : uri.getLastPathSegment();
+        long durationMs = -1;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(context, uri);
+            String duration = retriever.extractMetadata(
+                    MediaMetadataRetriever.METADATA_KEY_DURATION);
+            if(duration != null)
+                durationMs = Long.parseLong(duration);
+        } catch (RuntimeException e) {
+            Log.w(logTag, "Could not read duration of alarm sound " + soundUri, e);
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                Log.w(logTag, "Could not release metadata retriever", e);
+            }
+        }
+        return new RingtoneInfo(title, true, durationMs);
+    }
+
+    /**
+     * Helper method which opens a sound to check it can be played.
+     * @param uri the uri of the sound.
+     * @return true if the sound could be opened.
+     */
+    private boolean canOpen(Uri uri){
+        try(AssetFileDescriptor sound = context.getContentResolver()
+                .openAssetFileDescriptor(uri, "r")) {
+            return sound != null;
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            Log.w(logTag, "Could not open alarm sound " + uri, e);
+            return false;
+        }
+    }
+}
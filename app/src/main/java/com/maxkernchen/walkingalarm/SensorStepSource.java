@@ -0,0 +1,179 @@
+package com.maxkernchen.walkingalarm;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * SensorStepSource class counts steps from the phone's own step counter sensor, or the step
+ * detector if there is no counter, without going through Google Play Services.
+ *
+ * The sensor is registered with a max report latency, so the sensor hub batches steps in its
+ * FIFO and the CPU can sleep between batches. The latency is kept under a second so steps still
+ * reach the AlarmService well within one of its checks. Sensor events are handled on their own
+ * thread, and getCurrentSteps only reads the latest count.
+ *
+ * The step counter is first registered without batching, so its first event is the count at
+ * registration. A batched first event could already include the first steps walked, which would
+ * then never be counted. Once that baseline is taken it is registered again with batching.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class SensorStepSource implements StepSource, SensorEventListener {
+
+    // longest time in microseconds the sensor hub may hold steps in its FIFO before reporting.
+    private static final int MAX_REPORT_LATENCY_US = 500 * 1000;
+    // name of the thread sensor events are handled on.
+    private static final String SENSOR_THREAD_NAME = "StepSensor";
+    // used to register for sensor events.
+    private final SensorManager sensorManager;
+    // the step counter, or the step detector if there is no counter, null if neither exist.
+    private final Sensor stepSensor;
+    // thread sensor events are handled on, only running while the source is started.
+    private HandlerThread sensorThread;
+    // handler for the sensor thread, used to register for sensor events.
+    private Handler sensorHandler;
+    // step counter value at registration, -1 until the first event.
+    private float startingCount;
+    // steps walked since the source was started.
+    private volatile int steps;
+
+    /**
+     * Constructor for SensorStepSource.
+     * @param context context used to find the SensorManager.
+     */
+    public SensorStepSource(Context context){
+        this.sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        this.stepSensor = findStepSensor(sensorManager);
+    }
+
+    /**
+     * Check if the phone has a step counter or step detector sensor.
+     * @param context context used to find the SensorManager.
+     * @return true if steps can be counted from a sensor.
+     */
+    public static boolean isAvailable(Context context){
+        return findStepSensor((SensorManager) context.getSystemService(Context.SENSOR_SERVICE))
+                != null;
+    }
+
+    /**
+     * Register for step events, the step counter without batching until its baseline is taken
+     * and the step detector with batching in the sensor FIFO.
+     * @return future which has completed, or failed with a StepSourceException if there is no
+     * step sensor or it could not be registered.
+     */
+    @Override
+    public CompletableFuture<Void> start() {
+        if(stepSensor == null)
+            return StepFutures.failed(
+                    new StepSourceException(R.string.could_not_find_steps_error));
+
+        steps = 0;
+        startingCount = -1;
+        boolean registered;
+        synchronized (this) {
+            sensorThread = new HandlerThread(SENSOR_THREAD_NAME);
+            sensorThread.start();
+            sensorHandler = new Handler(sensorThread.getLooper());
+            int maxReportLatencyUs = stepSensor.getType() == Sensor.TYPE_STEP_COUNTER ? 0 :
+                    MAX_REPORT_LATENCY_US;
+            registered = sensorManager.registerListener(this, stepSensor,
+                    SensorManager.SENSOR_DELAY_NORMAL, maxReportLatencyUs, sensorHandler);
+        }
+        if(!registered){
+            stop();
+            return StepFutures.failed(
+                    new StepSourceException(R.string.could_not_find_steps_error));
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return future which has completed with the number of steps walked since start, as last
+     * reported by the sensor.
+     */
+    @Override
+    public CompletableFuture<Integer> getCurrentSteps() {
+        return CompletableFuture.completedFuture(steps);
+    }
+
+    /**
+     * Unregister from the sensor and stop the sensor thread.
+     */
+    @Override
+    public synchronized void stop() {
+        sensorManager.unregisterListener(this);
+        if(sensorThread != null){
+            sensorThread.quitSafely();
+            sensorThread = null;
+            sensorHandler = null;
+        }
+    }
+
+    /**
+     * Update the steps walked. The step counter gives the steps since the phone booted, so it is
+     * counted from the value at registration, while the step detector sends one event per step.
+     * @param event the sensor event, may hold a batch of steps.
+     */
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if(event.sensor.getType() == Sensor.TYPE_STEP_COUNTER){
+            float count = event.values[0];
+            if(startingCount < 0){
+                startingCount = count;
+                registerBatched();
+            }
+            steps = (int) (count - startingCount);
+        }
+        else {
+            steps++;
+        }
+    }
+
+    /**
+     * Helper method which registers the step counter again with batching, once its baseline is
+     * taken. If batching can not be used it is left registered without.
+     */
+    private synchronized void registerBatched(){
+        // the source was stopped while the first event was being handled.
+        if(sensorHandler == null)
+            return;
+        sensorManager.unregisterListener(this, stepSensor);
+        if(!sensorManager.registerListener(this, stepSensor, SensorManager.SENSOR_DELAY_NORMAL,
+                MAX_REPORT_LATENCY_US, sensorHandler)){
+            sensorManager.registerListener(this, stepSensor, SensorManager.SENSOR_DELAY_NORMAL,
+                    sensorHandler);
+        }
+    }
+
+    /**
+     * Accuracy does not matter for step sensors.
+     * @param sensor the sensor.
+     * @param accuracy the new accuracy.
+     */
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Helper method which finds the step counter, falling back to the step detector.
+     * @param sensorManager the SensorManager to find the sensor with.
+     * @return the step sensor, or null if the phone has neither.
+     */
+    private static Sensor findStepSensor(SensorManager sensorManager){
+        if(sensorManager == null)
+            return null;
+        Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
+        if(sensor == null)
+            sensor = sensorManager.getDefaultSensor(Sensor.TYPE_STEP_DETECTOR);
+        return sensor;
+    }
+}
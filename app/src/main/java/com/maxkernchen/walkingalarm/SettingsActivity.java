@@ -17,12 +17,14 @@ import androidx.preference.PreferenceManager;
 
 
 /**
- * SettingsActivity which holds all our settings, right now there are 4:
+ * SettingsActivity which holds all our settings, right now there are 5:
  *
  * Number of steps required to dismiss alarm
  * Dark theme toggle
  * Vibration on alarm toggle
  * Maximum time in seconds to wait for one step before dismissing the alarm.
+ * Where steps are counted from, Google Fit history, Google Fit live updates or the phone's
+ * step sensor.
  *
  *  @version 1.4
  *  @author Max Kernchen
@@ -97,6 +99,23 @@ public class SettingsActivity extends AppCompatActivity {
          * Key for the max seconds to wait setting
          */
         public final static String MAX_SECS_TO_WAIT_KEY = "max_secs_to_wait_key";
+
+        /**
+         * Key for the step source setting
+         */
+        public final static String STEP_SOURCE_KEY = "step_source_key";
+        /**
+         * Step source setting value to count steps with Google Fit
+         */
+        public final static String STEP_SOURCE_GOOGLE_FIT = "google_fit";
+        /**
+         * Step source setting value to count steps pushed live by Google Fit
+         */
+        public final static String STEP_SOURCE_GOOGLE_FIT_LIVE = "google_fit_live";
+        /**
+         * Step source setting value to count steps with the phone's step sensor
+         */
+        public final static String STEP_SOURCE_SENSOR = "step_sensor";
         // steps to dismiss edit text is stored here for usage on the create listeners and
         // onCreatePreferences
         private EditTextPreference stepsToDismissEditText;
@@ -0,0 +1,112 @@
+package com.maxkernchen.walkingalarm;
+
+import com.google.android.gms.tasks.Task;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * StepFutures class has static helpers for building the asynchronous step pipeline out of
+ * CompletableFuture stages, for the parts CompletableFuture does not have on older API levels.
+ * Google Play Services tasks are turned into futures which complete as soon as the task does,
+ * so a failure is seen straight away, and a timeout is added as its own stage.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class StepFutures {
+
+    // name of the thread timeouts are run on.
+    private static final String TIMEOUT_THREAD_NAME = "StepTimeout";
+    // single daemon thread which completes futures that time out, it never blocks.
+    private static final ScheduledExecutorService timeoutScheduler =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, TIMEOUT_THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Private constructor as this class only has static helpers.
+     */
+    private StepFutures(){
+    }
+
+    /**
+     * Get a future which has already failed.
+     * @param error the error the future failed with.
+     * @param <T> type of the future.
+     * @return the failed future.
+     */
+    public static <T> CompletableFuture<T> failed(Throwable error){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    /**
+     * Turn a Google Play Services task into a future, completed on the thread the task
+     * completes on.
+     * @param task the task.
+     * @param <T> type of the task result.
+     * @return future completing with the task's result or failure.
+     */
+    public static <T> CompletableFuture<T> fromTask(Task<T> task){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        task.addOnCompleteListener(Runnable::run, completedTask -> {
+            if(completedTask.isSuccessful())
+                future.complete(completedTask.getResult());
+            else if(completedTask.isCanceled())
+                future.cancel(false);
+            else
+                future.completeExceptionally(completedTask.getException());
+        });
+        return future;
+    }
+
+    /**
+     * Add a timeout stage to a future, failing with a StepSourceException if it has not
+     * completed in time.
+     * @param future the future to time out.
+     * @param timeoutMs how long in ms to wait for the future.
+     * @param <T> type of the future.
+     * @return future completing like the passed in future, or failing once timeoutMs passes.
+     */
+    public static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future,
+                                                       long timeoutMs){
+        CompletableFuture<T> timed = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = timeoutScheduler.schedule(() ->
+                timed.completeExceptionally(new StepSourceException(
+                        R.string.could_not_find_steps_error, new TimeoutException())),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, error) -> {
+            timeout.cancel(false);
+            if(error != null)
+                timed.completeExceptionally(error);
+            else
+                timed.complete(result);
+        });
+        return timed;
+    }
+
+    /**
+     * Get the string resource of the error message to show for a failed step pipeline.
+     * @param error the error a future failed with, may be wrapped by CompletableFuture.
+     * @return the StepSourceException's message, or the could not find steps message.
+     */
+    public static int getErrorMessageId(Throwable error){
+        while((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null){
+            error = error.getCause();
+        }
+        if(error instanceof StepSourceException)
+            return ((StepSourceException) error).getErrorMessageId();
+        return R.string.could_not_find_steps_error;
+    }
+}
@@ -0,0 +1,54 @@
+package com.maxkernchen.walkingalarm;
+
+/**
+ * StepPoller class decides how long the AlarmService waits between checks of a DismissalSession.
+ * Checks start fast as the session starts, back off while no steps are arriving, and go back
+ * to fast as soon as steps are seen. Once the user has started walking more steps are soon to
+ * come, so the back off is kept shorter. The wait is never longer than the time to the
+ * session's next deadline, so dismissing for no steps is not delayed.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class StepPoller {
+
+    /**
+     * Shortest wait in ms between checks, used while steps are arriving.
+     */
+    public static final int FAST_INTERVAL_MS = 500;
+    /**
+     * Longest wait in ms between checks, reached while no steps have arrived yet.
+     */
+    public static final int MAX_INTERVAL_MS = 2000;
+    /**
+     * Longest wait in ms between checks once some steps have arrived.
+     */
+    public static final int MAX_WALKING_INTERVAL_MS = 1000;
+    // current wait between checks.
+    private int intervalMs = FAST_INTERVAL_MS;
+    // steps remaining as of the last check, -1 before the first check.
+    private int lastStepsRemaining = -1;
+    // true once the steps remaining have gone down.
+    private boolean walking = false;
+
+    /**
+     * Get how long to wait before the next check, doubling the wait if the steps have not
+     * changed since the last check.
+     * @param stepsRemaining steps remaining as of the check just made.
+     * @param millisUntilDeadline ms until the session's next deadline passes.
+     * @return ms to wait before the next check.
+     */
+    public int nextIntervalMs(int stepsRemaining, long millisUntilDeadline){
+        if(stepsRemaining != lastStepsRemaining){
+            walking |= lastStepsRemaining != -1;
+            lastStepsRemaining = stepsRemaining;
+            intervalMs = FAST_INTERVAL_MS;
+        }
+        else {
+            intervalMs = Math.min(intervalMs * 2,
+                    walking ? MAX_WALKING_INTERVAL_MS : MAX_INTERVAL_MS);
+        }
+        // check just after the deadline, as the session only dismisses once it has passed.
+        return (int) Math.min(intervalMs, Math.max(millisUntilDeadline + 1, 1));
+    }
+}
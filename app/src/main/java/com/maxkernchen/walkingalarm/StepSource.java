@@ -0,0 +1,37 @@
+package com.maxkernchen.walkingalarm;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * StepSource interface for anything the AlarmService can count the steps walked to dismiss an
+ * alarm from. Steps are counted from when the source is started, so the AlarmService does not
+ * need to know what each source counts from.
+ *
+ * Every call returns a future straight away and must never block the calling thread. A source
+ * which can not count steps fails the future with a StepSourceException, as soon as it knows.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public interface StepSource {
+
+    /**
+     * Start counting steps, called once the alarm notification has reached the user.
+     * @return future completing once steps are being counted, or failing with a
+     * StepSourceException if steps can not be counted.
+     */
+    CompletableFuture<Void> start();
+
+    /**
+     * Get the steps walked since start was called.
+     * @return future completing with the number of steps walked since start, or failing with a
+     * StepSourceException if the current steps could not be found.
+     */
+    CompletableFuture<Integer> getCurrentSteps();
+
+    /**
+     * Stop counting steps and release anything held by the source, called once the alarm
+     * session is finished.
+     */
+    void stop();
+}
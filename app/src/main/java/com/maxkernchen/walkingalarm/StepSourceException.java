@@ -0,0 +1,43 @@
+package com.maxkernchen.walkingalarm;
+
+import androidx.annotation.StringRes;
+
+/**
+ * StepSourceException class thrown by a StepSource when steps can not be counted. Holds the
+ * error message to toast to the user before the alarm is dismissed.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class StepSourceException extends Exception {
+
+    // string resource of the error message to show the user.
+    private final int errorMessageId;
+
+    /**
+     * Constructor for StepSourceException.
+     * @param errorMessageId string resource of the error message to show the user.
+     */
+    public StepSourceException(@StringRes int errorMessageId){
+        super();
+        this.errorMessageId = errorMessageId;
+    }
+
+    /**
+     * Constructor for StepSourceException with the cause of the error.
+     * @param errorMessageId string resource of the error message to show the user.
+     * @param cause the exception which caused the error.
+     */
+    public StepSourceException(@StringRes int errorMessageId, Throwable cause){
+        super(cause);
+        this.errorMessageId = errorMessageId;
+    }
+
+    /**
+     * @return string resource of the error message to show the user.
+     */
+    @StringRes
+    public int getErrorMessageId(){
+        return errorMessageId;
+    }
+}
@@ -0,0 +1,164 @@
+package com.maxkernchen.walkingalarm;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SupervisedScheduler class runs tasks on one named thread, and restarts any task which fails.
+ * A failed task is run again after a back off which doubles with each failure in a row, up to
+ * MAX_RESTARTS times, after which the give up handler is run instead. Counts of failures and
+ * restarts are kept so they can be logged, and a failing task can never take down the thread.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class SupervisedScheduler implements Executor {
+
+    // back off in ms before the first restart of a failed task.
+    private static final long INITIAL_BACKOFF_MS = 500;
+    // longest back off in ms between restarts.
+    private static final long MAX_BACKOFF_MS = 8000;
+    // number of failures in a row after which the give up handler is run.
+    private static final int MAX_RESTARTS = 4;
+    // name used for the thread and in logs.
+    private final String name;
+    // single thread every task is run on.
+    private final ScheduledExecutorService executor;
+    // run with the last failure once a task has failed more than MAX_RESTARTS times in a row.
+    private final GiveUpHandler giveUpHandler;
+    // total number of task failures, only changed on the scheduler thread.
+    private volatile int failureCount;
+    // total number of restarts, only changed on the scheduler thread.
+    private volatile int restartCount;
+    // number of failures since a task last succeeded, only used on the scheduler thread.
+    private int failuresInARow;
+
+    /**
+     * Handler run once a task has failed too many times in a row.
+     */
+    public interface GiveUpHandler {
+        /**
+         * @param lastFailure the exception the task last failed with.
+         */
+        void onGiveUp(Exception lastFailure);
+    }
+
+    /**
+     * Constructor for SupervisedScheduler.
+     * @param name name of the thread, also used in logs.
+     * @param giveUpHandler run on the scheduler thread once a task has failed too many times.
+     */
+    public SupervisedScheduler(String name, GiveUpHandler giveUpHandler){
+        this.name = name;
+        this.giveUpHandler = giveUpHandler;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                runnable -> new Thread(runnable, name));
+    }
+
+    /**
+     * Run a task on the scheduler thread as soon as possible.
+     * @param task the task to run, restarted if it fails.
+     */
+    @Override
+    public void execute(Runnable task){
+        schedule(task, 0);
+    }
+
+    /**
+     * Run a task on the scheduler thread after a delay. Tasks passed in once the scheduler is
+     * shut down are dropped.
+     * @param task the task to run, restarted if it fails.
+     * @param delayMs how long to wait in ms before running the task.
+     */
+    public void schedule(Runnable task, long delayMs){
+        try {
+            executor.schedule(() -> runSupervised(task), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.w(logTag(), "Dropping task, scheduler is shut down");
+        }
+    }
+
+    /**
+     * Stop running tasks once those already running finish, called once the work is done.
+     */
+    public void shutdown(){
+        executor.shutdown();
+    }
+
+    /**
+     * Stop now, interrupting the running task and dropping any waiting tasks.
+     */
+    public void shutdownNow(){
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return true once shutdown or shutdownNow has been called.
+     */
+    public boolean isShutdown(){
+        return executor.isShutdown();
+    }
+
+    /**
+     * @return total number of times a task has failed.
+     */
+    public int getFailureCount(){
+        return failureCount;
+    }
+
+    /**
+     * @return total number of times a failed task has been restarted.
+     */
+    public int getRestartCount(){
+        return restartCount;
+    }
+
+    /**
+     * Helper method which runs a task, restarting it with back off if it fails.
+     * @param task the task to run.
+     */
+    private void runSupervised(Runnable task){
+        try {
+            task.run();
+            failuresInARow = 0;
+        } catch (Exception e) {
+            failureCount++;
+            failuresInARow++;
+            if(failuresInARow > MAX_RESTARTS){
+                Log.e(logTag(), "Giving up after " + MAX_RESTARTS + " restarts", e);
+                failuresInARow = 0;
+                giveUp(e);
+                return;
+            }
+            long backoffMs = Math.min(INITIAL_BACKOFF_MS << (failuresInARow - 1),
+                    MAX_BACKOFF_MS);
+            restartCount++;
+            Log.w(logTag(), "Task failed, restarting in " + backoffMs + " ms", e);
+            schedule(task, backoffMs);
+        }
+    }
+
+    /**
+     * Helper method which runs the give up handler, it is not restarted if it fails.
+     * @param lastFailure the exception the task last failed with.
+     */
+    private void giveUp(Exception lastFailure){
+        try {
+            giveUpHandler.onGiveUp(lastFailure);
+        } catch (Exception e) {
+            Log.e(logTag(), "Give up handler failed", e);
+        }
+    }
+
+    /**
+     * @return the tag to log with.
+     */
+    private String logTag(){
+        return "SupervisedScheduler:" + name;
+    }
+}
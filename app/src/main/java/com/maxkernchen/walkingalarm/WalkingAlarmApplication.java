@@ -0,0 +1,51 @@
+package com.maxkernchen.walkingalarm;
+
+import android.app.ActivityManager;
+import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * WalkingAlarmApplication class records why the process was started, so MainActivity only
+ * times startup from the process start when the process was started to show it. The process
+ * is often started by the AlarmReceiver, on boot or by the AlarmService long before the app is
+ * opened, and timing from the process start then would count all of that time.
+ *
+ * The process was started for an activity if it was in the foreground as the application was
+ * created, and the activity is created before the first message posted here runs, as the
+ * launch of the activity is already queued on the main thread.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class WalkingAlarmApplication extends Application {
+
+    // true from the application being created for an activity launch until the first message
+    // posted after it runs, or the launch is taken. Only used on the main thread.
+    private static boolean launchPending = false;
+
+    /**
+     * Record if the process was started to show an activity.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ActivityManager.RunningAppProcessInfo processInfo =
+                new ActivityManager.RunningAppProcessInfo();
+        ActivityManager.getMyMemoryState(processInfo);
+        launchPending = processInfo.importance ==
+                ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+        new Handler(Looper.getMainLooper()).post(() -> launchPending = false);
+    }
+
+    /**
+     * Check if the process was started to show the activity being created, true at most once
+     * per process. Must be called on the main thread from Activity.onCreate.
+     * @return true if this is a cold start of the activity.
+     */
+    public static boolean takeColdLaunch(){
+        boolean coldLaunch = launchPending;
+        launchPending = false;
+        return coldLaunch;
+    }
+}
@@ -0,0 +1,156 @@
+package com.maxkernchen.walkingalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Replay Test class, plays each recorded step trace against a DismissalSession the same way the
+ * AlarmService does, then checks how the session ended. Reports the time from the alarm firing
+ * to it being dismissed, and the number of calls made to the StepSource, as a baseline for any
+ * change to the polling or time out logic.
+ *
+ * Each trace gives the outcome it expects with "expect", the longest it may take to get there
+ * with "max_latency_ms", and the most StepSource calls it may make with "max_calls".
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class DismissalReplayTest {
+
+    // folder the traces are stored in, on the test classpath.
+    private static final String TRACE_FOLDER = "traces/";
+    // outcome of a session where the StepSource failed.
+    private static final String ERROR_OUTCOME = "ERROR";
+    // longest a replayed session may run before it is treated as hanging.
+    private static final long MAX_SESSION_MS = 10 * 60 * 1000L;
+
+    /**
+     * Steps from the phone sensor arrive as they are walked.
+     */
+    @Test
+    public void sensorSteps() throws IOException {
+        replay("sensor_steps.trace");
+    }
+
+    /**
+     * Google Fit reports the walk in chunks several seconds late.
+     */
+    @Test
+    public void fitLagged() throws IOException {
+        replay("fit_lagged.trace");
+    }
+
+    /**
+     * Google Fit reports nothing for a while, then catches up.
+     */
+    @Test
+    public void fitGap() throws IOException {
+        replay("fit_gap.trace");
+    }
+
+    /**
+     * Google Fit starts failing part way through the walk.
+     */
+    @Test
+    public void fitError() throws IOException {
+        replay("fit_error.trace");
+    }
+
+    /**
+     * The user never walks.
+     */
+    @Test
+    public void noSteps() throws IOException {
+        replay("no_steps.trace");
+    }
+
+    /**
+     * The user walks a few steps then stops.
+     */
+    @Test
+    public void partialSteps() throws IOException {
+        replay("partial_steps.trace");
+    }
+
+    /**
+     * Helper method which replays one trace and checks the outcome against the trace.
+     * @param traceName file name of the trace.
+     * @throws IOException if the trace could not be read.
+     */
+    private void replay(String traceName) throws IOException {
+        ReplayStepSource.ReplayClock clock = new ReplayStepSource.ReplayClock();
+        ReplayStepSource stepSource;
+        try(InputStream in = getClass().getClassLoader().getResourceAsStream(
+                TRACE_FOLDER + traceName)) {
+            if(in == null)
+                throw new IOException("Missing trace: " + traceName);
+            stepSource = new ReplayStepSource(
+                    new InputStreamReader(in, StandardCharsets.UTF_8), clock);
+        }
+        int stepsToDismiss = Integer.parseInt(stepSource.getSetting("steps_to_dismiss",
+                String.valueOf(SettingsActivity.SettingsFragment.MINIMUM_STEPS_TO_DISMISS)));
+        int maxSecondsToWait = Integer.parseInt(stepSource.getSetting("max_secs_to_wait",
+                String.valueOf(SettingsActivity.SettingsFragment.MIN_MAX_SECS_TO_WAIT_FOR_STEPS)));
+        String outcome = runSession(new DismissalSession(stepSource, stepsToDismiss,
+                maxSecondsToWait), clock);
+        long latencyMs = clock.now();
+        System.out.println(String.format("%-20s %-15s latency %6d ms, %3d calls", traceName,
+                outcome, latencyMs, stepSource.getCalls()));
+
+        assertEquals(traceName, stepSource.getSetting("expect", ""), outcome);
+        long maxLatencyMs = Long.parseLong(stepSource.getSetting("max_latency_ms",
+                String.valueOf(MAX_SESSION_MS)));
+        assertTrue(traceName + " took " + latencyMs + " ms", latencyMs <= maxLatencyMs);
+        int maxCalls = Integer.parseInt(stepSource.getSetting("max_calls",
+                String.valueOf(Integer.MAX_VALUE)));
+        assertTrue(traceName + " made " + stepSource.getCalls() + " calls",
+                stepSource.getCalls() <= maxCalls);
+    }
+
+    /**
+     * Helper method which runs a session the way the AlarmService does, the wait for steps
+     * starts once the notification is shown, then steps are checked as often as the StepPoller
+     * says. The traces were recorded without the AlarmFullScreen being shown, so the wait starts
+     * once NOTIFICATION_DELAY_MS has passed.
+     * @param session the session to run.
+     * @param clock the clock the session is run against, left at the time it ended.
+     * @return the name of the result the session ended with, or ERROR_OUTCOME.
+     */
+    private static String runSession(DismissalSession session,
+                                     ReplayStepSource.ReplayClock clock){
+        StepPoller stepPoller = new StepPoller();
+        try {
+            clock.advance(DismissalSession.NOTIFICATION_DELAY_MS);
+            session.onNotificationShown(clock.now());
+            // every replay future has completed by the time it is returned.
+            session.start().join();
+            while(clock.now() < MAX_SESSION_MS){
+                DismissalSession.Result result = session.check(clock::now).join();
+                if(result != DismissalSession.Result.WALKING){
+                    assertEquals(result == DismissalSession.Result.DISMISSED ?
+                            DismissalSession.State.DISMISSED : DismissalSession.State.TIMED_OUT,
+                            session.getState());
+                    return result.name();
+                }
+                long intervalMs = stepPoller.nextIntervalMs(session.getStepsRemaining(),
+                        session.millisUntilNextDeadline(clock.now()));
+                clock.advance(intervalMs);
+            }
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof StepSourceException){
+                assertTrue(session.fail());
+                return ERROR_OUTCOME;
+            }
+            throw e;
+        }
+        return DismissalSession.Result.WALKING.name();
+    }
+}
@@ -0,0 +1,181 @@
+package com.maxkernchen.walkingalarm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ReplayStepSource class plays back a recorded step trace as a StepSource, against a virtual
+ * clock so a whole alarm session runs in a few milliseconds.
+ *
+ * A trace is a text file, one entry per line, blank lines and lines starting with # ignored:
+ * "time_ms steps" - from time_ms after the alarm fired the source reports this step total.
+ * "time_ms error" - from time_ms the source fails until the next steps entry.
+ * "key value" - a setting for the replay, such as call_latency_ms, the time each call to the
+ * source takes, or the expected outcome read by the test.
+ * Entries must be in time order. Steps are totals like the Google Fit daily total, so delays and
+ * gaps in what Google Fit reports are recorded as they happened.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class ReplayStepSource implements StepSource {
+
+    // value of the steps for an error entry.
+    private static final int ERROR = -1;
+    // time of each entry in ms after the alarm fired.
+    private final List<Long> times = new ArrayList<>();
+    // step total of each entry, or ERROR.
+    private final List<Integer> steps = new ArrayList<>();
+    // settings given in the trace.
+    private final Map<String, String> settings = new HashMap<>();
+    // the clock the trace is played against.
+    private final ReplayClock clock;
+    // how long each call to the source takes in ms, the clock is moved on by this.
+    private final long callLatencyMs;
+    // step total when the source was started.
+    private int startingSteps;
+    // number of times the source was called.
+    private int calls;
+
+    /**
+     * Constructor for ReplayStepSource.
+     * @param trace reader for the trace to play.
+     * @param clock the clock the trace is played against.
+     * @throws IOException if the trace could not be read, or an entry is not valid.
+     */
+    public ReplayStepSource(Reader trace, ReplayClock clock) throws IOException {
+        this.clock = clock;
+        try(BufferedReader reader = new BufferedReader(trace)) {
+            String line;
+            while((line = reader.readLine()) != null){
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] parts = line.split("\\s+");
+                if(parts.length != 2)
+                    throw new IOException("Not a valid trace entry: " + line);
+                if(Character.isDigit(parts[0].charAt(0))){
+                    times.add(Long.parseLong(parts[0]));
+                    steps.add(parts[1].equals("error") ? ERROR : Integer.parseInt(parts[1]));
+                }
+                else {
+                    settings.put(parts[0], parts[1]);
+                }
+            }
+        }
+        this.callLatencyMs = Long.parseLong(getSetting("call_latency_ms", "0"));
+    }
+
+    /**
+     * Get a setting given in the trace.
+     * @param key the key of the setting.
+     * @param defaultValue the value to use if the trace does not give one.
+     * @return the setting value.
+     */
+    public String getSetting(String key, String defaultValue){
+        String value = settings.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Read the step total to count steps from.
+     * @return future which has completed, or failed with a StepSourceException if the trace is
+     * in an error at the current time.
+     */
+    @Override
+    public CompletableFuture<Void> start() {
+        try {
+            startingSteps = readTotal();
+            return CompletableFuture.completedFuture(null);
+        } catch (StepSourceException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * @return future which has completed with the steps in the trace since start, as of the
+     * current time, or failed with a StepSourceException if the trace is in an error.
+     */
+    @Override
+    public CompletableFuture<Integer> getCurrentSteps() {
+        try {
+            return CompletableFuture.completedFuture(Math.max(readTotal() - startingSteps, 0));
+        } catch (StepSourceException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Nothing is held by a replay.
+     */
+    @Override
+    public void stop() {
+    }
+
+    /**
+     * @return number of times start or getCurrentSteps was called.
+     */
+    public int getCalls(){
+        return calls;
+    }
+
+    /**
+     * Helper method which finds the step total at the current time, after taking the call
+     * latency off the clock.
+     * @return the step total of the latest entry, zero before the first entry.
+     * @throws StepSourceException if the latest entry is an error.
+     */
+    private int readTotal() throws StepSourceException {
+        calls++;
+        clock.advance(callLatencyMs);
+        int total = 0;
+        for(int i = 0; i < times.size() && times.get(i) <= clock.now(); i++){
+            total = steps.get(i);
+        }
+        if(total == ERROR)
+            throw new StepSourceException(R.string.could_not_find_steps_error);
+        return total;
+    }
+
+    /**
+     * Helper method which gets a future that has already failed.
+     * @param error the error the future failed with.
+     * @param <T> type of the future.
+     * @return the failed future.
+     */
+    private static <T> CompletableFuture<T> failed(Throwable error){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    /**
+     * Virtual clock a trace is played against, starting at zero when the alarm fires.
+     */
+    public static class ReplayClock {
+
+        // current time in ms.
+        private long nowMillis;
+
+        /**
+         * @return current time in ms.
+         */
+        public long now(){
+            return nowMillis;
+        }
+
+        /**
+         * Move the clock forward.
+         * @param millis how far to move in ms.
+         */
+        public void advance(long millis){
+            nowMillis += millis;
+        }
+    }
+}
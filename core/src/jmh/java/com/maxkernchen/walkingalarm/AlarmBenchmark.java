@@ -0,0 +1,273 @@
+package com.maxkernchen.walkingalarm;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * AlarmBenchmark class measures the alarm model, persistence and trigger paths on the JVM, for
+ * a small, large and full list of alarms. Run with ./gradlew :core:jmh, each benchmark
+ * reports throughput and sampled latency, with the gc profiler giving allocations per call.
+ *
+ * The AlarmStore database needs Android so can not run here, the persistence paths measured are
+ * the binary AlarmRecordFile and the LegacyAlarmItem json each alarm was stored as before it,
+ * which are the paths alarms are still read from when they are moved into the AlarmStore.
+ * Saving is measured as the atomic write of every alarm to an AlarmRecordFile, synced to disk.
+ * The SQLite insert into the AlarmStore is not measured here, and needs an on device benchmark
+ * to judge.
+ *
+ * An alarm is keyed by the minute of the day it is set for, so there can be at most one alarm
+ * for each minute. The largest list is capped at MAX_ALARMS, every minute but midnight, which is
+ * left free for the alarm added by addAndDeleteAlarm, and each alarm gets a time of its own.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+@State(Scope.Benchmark)
+public class AlarmBenchmark {
+
+    // most alarms the list can hold, one for every minute of the day but midnight.
+    private static final int MAX_ALARMS = 24 * 60 - 1;
+    // number of milliseconds in a week.
+    private static final long MILLIS_PER_WEEK = AlarmIndex.MINUTES_PER_WEEK * 60 * 1000L;
+    // sound uris of the alarms, each alarm uses one of them.
+    private static final String[] SOUND_URIS = {"content://settings/system/alarm_alert",
+            "content://media/internal/audio/media/42"};
+    // sound names of the alarms, matching SOUND_URIS.
+    private static final String[] SOUND_NAMES = {"Default Alarm Sound", "Argon"};
+
+    // number of alarms in the list, MAX_ALARMS being every minute of the day but midnight.
+    @Param({"10", "1000", "1439"})
+    public int alarmCount;
+
+    // the alarm items, each with an id.
+    private List<AlarmItem> alarmItems;
+    // legacy json of each alarm item, as it was stored before the AlarmStore.
+    private List<String> alarmJson;
+    // the alarm items by the minute of the week they are due, as the AlarmStore index holds them.
+    private Map<Integer, List<AlarmItem>> alarmsByMinuteOfWeek;
+    // minutes of the week with an alarm due, the trigger path cycles through them.
+    private int[] dueMinutesOfWeek;
+    // the alarm items indexed by time, as the AlarmListAdapter holds them.
+    private AlarmRepository alarmRepository;
+    // alarm item with no match in the list, so the duplicate scan looks at every item.
+    private AlarmItem newAlarmItem;
+    // gson used to read the legacy alarm json.
+    private Gson gson;
+    // temporary directory holding the alarm file and the trigger journal.
+    private File tempDir;
+    // the alarm file written with every alarm item.
+    private AlarmRecordFile alarmRecordFile;
+    // the alarm file every alarm item is saved to, apart from the one read from.
+    private AlarmRecordFile savedRecordFile;
+    // the trigger journal each trigger is recorded in.
+    private TriggerJournal triggerJournal;
+    // start of the week the first trigger is for.
+    private long weekStartMillis;
+    // number of triggers so far, each trigger is for the next due minute a week later.
+    private long triggerCount;
+    // index of the alarm item the name is formatted for next.
+    private int nameIndex;
+
+    /**
+     * Set up the alarm items, the alarm file, json and index for the number of alarms.
+     * @throws IOException if the alarm file could not be written.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if(alarmCount > MAX_ALARMS)
+            throw new IllegalArgumentException("At most " + MAX_ALARMS + " alarms, one a minute");
+        Random random = new Random(42);
+        // a distinct random minute for each alarm, midnight is left free for the new alarm item.
+        List<Integer> minutesOfDay = new ArrayList<>(MAX_ALARMS);
+        for(int minute = 1; minute <= MAX_ALARMS; minute++){
+            minutesOfDay.add(minute);
+        }
+        Collections.shuffle(minutesOfDay, random);
+        alarmItems = new ArrayList<>(alarmCount);
+        for(int i = 0; i < alarmCount; i++){
+            // random days of the week, the mask is never empty.
+            int sound = random.nextInt(SOUND_URIS.length);
+            AlarmItem item = new AlarmItem(minutesOfDay.get(i),
+                    (byte) (random.nextInt(0x7F) + 1), true, SOUND_URIS[sound],
+                    SOUND_NAMES[sound]);
+            item.setId(i + 1);
+            alarmItems.add(item);
+        }
+        newAlarmItem = new AlarmItem(0, (byte) 0x7F, true,
+                "content://media/internal/audio/media/7", "Helium");
+        alarmRepository = new AlarmRepository(alarmItems);
+
+        gson = new Gson();
+        alarmJson = new ArrayList<>(alarmCount);
+        for(AlarmItem item : alarmItems){
+            alarmJson.add(legacyJson(item));
+        }
+
+        alarmsByMinuteOfWeek = new HashMap<>();
+        for(AlarmItem item : alarmItems){
+            for(int minuteOfWeek : AlarmIndex.slotsOf(item)){
+                alarmsByMinuteOfWeek.computeIfAbsent(minuteOfWeek, minute -> new ArrayList<>())
+                        .add(item);
+            }
+        }
+        List<Integer> dueMinutes = new ArrayList<>(alarmsByMinuteOfWeek.keySet());
+        Collections.shuffle(dueMinutes, random);
+        dueMinutesOfWeek = new int[dueMinutes.size()];
+        for(int i = 0; i < dueMinutesOfWeek.length; i++){
+            dueMinutesOfWeek[i] = dueMinutes.get(i);
+        }
+        weekStartMillis = LocalDate.now().with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY))
+                .atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+
+        tempDir = File.createTempFile("alarm_benchmark", "");
+        if(!tempDir.delete() || !tempDir.mkdir())
+            throw new IOException("Could not create " + tempDir);
+        alarmRecordFile = new AlarmRecordFile(new File(tempDir, "alarms.bin"));
+        alarmRecordFile.write(alarmItems);
+        savedRecordFile = new AlarmRecordFile(new File(tempDir, "alarms_saved.bin"));
+        triggerJournal = new TriggerJournal(new File(tempDir, "trigger_journal.bin"));
+    }
+
+    /**
+     * Delete the alarm file and the trigger journal.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        File[] files = tempDir.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    /**
+     * Read every alarm from the binary alarm file.
+     * @return the alarm items read.
+     * @throws IOException if the alarm file could not be read.
+     */
+    @Benchmark
+    public List<AlarmItem> readAlarmRecordFile() throws IOException {
+        return alarmRecordFile.read();
+    }
+
+    /**
+     * Read every alarm from the legacy json it was stored as and move it into an AlarmItem, one
+     * json string for each alarm.
+     * @return the alarm items read.
+     */
+    @Benchmark
+    public List<AlarmItem> readLegacyAlarmJson(){
+        List<AlarmItem> items = new ArrayList<>(alarmJson.size());
+        for(String json : alarmJson){
+            items.add(gson.fromJson(json, LegacyAlarmItem.class).toAlarmItem());
+        }
+        return items;
+    }
+
+    /**
+     * Save every alarm to the binary alarm file, written to a temporary file, synced and renamed
+     * over the last save.
+     * @throws IOException if the alarm file could not be written.
+     */
+    @Benchmark
+    public void saveAlarmItems() throws IOException {
+        savedRecordFile.write(alarmItems);
+    }
+
+    /**
+     * Trigger the alarms due at the next due minute, finding them by the minute of the week and
+     * recording the first in the trigger journal. Each trigger is a week after the last one for
+     * the same minute, so the alarm always fires and the journal is appended to.
+     * @return the alarm fired.
+     * @throws IOException if the trigger journal could not be read or written.
+     */
+    @Benchmark
+    public AlarmItem triggerAlarm() throws IOException {
+        long trigger = triggerCount++;
+        int dueMinute = dueMinutesOfWeek[(int) (trigger % dueMinutesOfWeek.length)];
+        long triggerTimeMillis = weekStartMillis + (trigger / dueMinutesOfWeek.length + 1) *
+                MILLIS_PER_WEEK + dueMinute * 60 * 1000L;
+        int minuteOfWeek = AlarmIndex.minuteOfWeek(triggerTimeMillis, TimeZone.getDefault());
+        List<AlarmItem> dueAlarms = alarmsByMinuteOfWeek.get(minuteOfWeek);
+        if(dueAlarms == null)
+            return null;
+        return triggerJournal.fireFirst(dueAlarms, triggerTimeMillis);
+    }
+
+    /**
+     * Check a new alarm against every alarm in the list for a duplicate, the scan adding an
+     * alarm did before the AlarmRepository.
+     * @return true if the new alarm is a duplicate, never the case here.
+     */
+    @Benchmark
+    public boolean findDuplicateAlarmScan(){
+        return alarmItems.contains(newAlarmItem);
+    }
+
+    /**
+     * Add a new alarm to the AlarmRepository and delete it again, as adding and deleting an
+     * alarm in the list does.
+     * @return the alarm deleted.
+     */
+    @Benchmark
+    public AlarmItem addAndDeleteAlarm(){
+        alarmRepository.add(newAlarmItem);
+        return alarmRepository.remove(newAlarmItem.getMinuteOfDay());
+    }
+
+    /**
+     * Format the name of the next alarm in the list with the shared formatter, the work binding
+     * an alarm row does the first time, before the name is kept on the alarm item.
+     * @return the alarm name.
+     */
+    @Benchmark
+    public String formatAlarmName(){
+        nameIndex = (nameIndex + 1) % alarmItems.size();
+        return AlarmLabels.current().format(alarmItems.get(nameIndex).getMinuteOfDay());
+    }
+
+    /**
+     * Helper method which makes the json an alarm item was stored as in the LegacyAlarmItem
+     * form, with the alarm time in a Calendar as Gson writes it.
+     * @param item the alarm item.
+     * @return the legacy json of the alarm item.
+     */
+    private static String legacyJson(AlarmItem item){
+        StringBuilder daysOfWeek = new StringBuilder();
+        for(DayOfWeek dayOfWeek : DayOfWeek.values()){
+            if(!item.hasDayOfWeek(dayOfWeek))
+                continue;
+            if(daysOfWeek.length() > 0)
+                daysOfWeek.append(',');
+            daysOfWeek.append('"').append(dayOfWeek.name()).append('"');
+        }
+        return "{\"alarmDate\":{\"year\":2023,\"month\":4,\"dayOfMonth\":1,\"hourOfDay\":" +
+                item.getMinuteOfDay() / 60 + ",\"minute\":" + item.getMinuteOfDay() % 60 +
+                ",\"second\":0},\"active\":" + item.isActive() + ",\"daysOfWeek\":[" +
+                daysOfWeek + "],\"alarmSoundName\":\"" + item.getAlarmSoundName() +
+                "\",\"alarmSoundUri\":\"" + item.getAlarmSoundUri() + "\"}";
+    }
+}
@@ -0,0 +1,100 @@
+package com.maxkernchen.walkingalarm;
+
+import java.time.DayOfWeek;
+import java.util.TimeZone;
+
+/**
+ * AlarmIndex class converts between times and the minute of the week slots alarms are indexed by.
+ * Each of the 10,080 minutes in a week is one slot, minute zero being Monday at midnight to match
+ * the DayOfWeek enum. The AlarmStore keeps an index of every active alarm by slot, so checking if
+ * an alarm is due, or finding the next alarm, is an indexed lookup rather than a walk over every
+ * AlarmItem.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class AlarmIndex {
+
+    /**
+     * public static int for the number of minutes in one week.
+     */
+    public static final int MINUTES_PER_WEEK = 7 * 24 * 60;
+    /**
+     * public static int returned when no alarm is found.
+     */
+    public static final int NO_ALARM = -1;
+    // number of minutes in a day
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    // number of milliseconds in a minute
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    // 01/01/1970 was a Thursday, which is 3 days after Monday, the start of our week.
+    private static final int EPOCH_MINUTE_OF_WEEK = 3 * MINUTES_PER_DAY;
+
+    /**
+     * Private constructor as this class only has static helpers.
+     */
+    private AlarmIndex(){
+    }
+
+    /**
+     * Get the minute of the week slot for a day of the week and minute of the day.
+     * @param dayOfWeekValue the DayOfWeek value, 1 being Monday and 7 being Sunday.
+     * @param minuteOfDay the minute of the day, 0 being midnight.
+     * @return the minute of the week, 0 being Monday at midnight.
+     */
+    public static int minuteOfWeek(int dayOfWeekValue, int minuteOfDay){
+        return (dayOfWeekValue - 1) * MINUTES_PER_DAY + minuteOfDay;
+    }
+
+    /**
+     * Get the minute of the week slots of an alarm, one for each day of week it is set for.
+     * These are the rows the AlarmStore keeps in its index for the alarm.
+     * @param item the alarm item.
+     * @return the minute of the week slots, Monday first.
+     */
+    public static int[] slotsOf(AlarmItem item){
+        int[] slots = new int[Integer.bitCount(item.getDaysOfWeekMask() & 0x7F)];
+        int slot = 0;
+        for(DayOfWeek dayOfWeek : DayOfWeek.values()){
+            if(item.hasDayOfWeek(dayOfWeek))
+                slots[slot++] = minuteOfWeek(dayOfWeek.getValue(), item.getMinuteOfDay());
+        }
+        return slots;
+    }
+
+    /**
+     * Convert a time in millis to the minute of the week in a time zone.
+     * @param timeMillis the time to convert.
+     * @param timeZone the time zone the alarms are set in.
+     * @return the minute of the week, 0 being Monday at midnight.
+     */
+    public static int minuteOfWeek(long timeMillis, TimeZone timeZone){
+        long localMinute = Math.floorDiv(timeMillis + timeZone.getOffset(timeMillis),
+                MILLIS_PER_MINUTE);
+        return (int) Math.floorMod(localMinute + EPOCH_MINUTE_OF_WEEK, (long) MINUTES_PER_WEEK);
+    }
+
+    /**
+     * Find the next time in millis a minute of the week slot comes around, strictly after the
+     * passed in time. Daylight savings changes are accounted for by converting back with the
+     * offset at the found time.
+     * @param nowMillis the time to search forward from.
+     * @param minuteOfWeek the minute of the week slot of the alarm.
+     * @param timeZone the time zone the alarms are set in.
+     * @return the time in millis the slot next comes around.
+     */
+    public static long nextFireTime(long nowMillis, int minuteOfWeek, TimeZone timeZone){
+        int nowMinute = minuteOfWeek(nowMillis, timeZone);
+        int minutesAhead = Math.floorMod(minuteOfWeek - nowMinute, MINUTES_PER_WEEK);
+        // the alarm is during the current minute, so the next one is a week away.
+        if(minutesAhead == 0)
+            minutesAhead = MINUTES_PER_WEEK;
+
+        long nowOffset = timeZone.getOffset(nowMillis);
+        long localStartOfMinute = Math.floorDiv(nowMillis + nowOffset, MILLIS_PER_MINUTE)
+                * MILLIS_PER_MINUTE;
+        long localFireTime = localStartOfMinute + minutesAhead * MILLIS_PER_MINUTE;
+        long fireOffset = timeZone.getOffset(localFireTime - nowOffset);
+        return localFireTime - fireOffset;
+    }
+}
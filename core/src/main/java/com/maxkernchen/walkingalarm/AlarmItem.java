@@ -0,0 +1,227 @@
+package com.maxkernchen.walkingalarm;
+import androidx.annotation.Nullable;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+/**
+ * AlarmItem class holds the object representation of each row in the app.
+ * List of this class is stored in AlarmListAdapter. Kept free of Android classes, in the core
+ * module, so it can be benchmarked on the JVM.
+ *
+ * Only the time and days of the alarm are needed, so they are held as a minute of the day and
+ * a bitmask of the days of week, and the sound is an interned AlarmSound shared with every
+ * other alarm using it. Alarms stored before this form are read with LegacyAlarmItem.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+
+public class AlarmItem {
+
+    // minute of the day the alarm should be triggered, 0 being midnight.
+    private short minuteOfDay;
+    // if the alarm is active, connected to switch button.
+    private boolean active;
+    // which days of week the alarm is active for as a bitmask, bit 0 being Monday and bit 6
+    // being Sunday, connected toggle buttons.
+    private byte daysOfWeekMask;
+    // the sound that should be played when the alarm is triggered.
+    private AlarmSound alarmSound;
+    // name of the alarm made by AlarmLabels, null until first used.
+    private String label;
+    // generation of the AlarmLabels formatter the label was made with.
+    private int labelGeneration;
+    // stable id of the alarm, the primary key in the AlarmStore. NO_ID until it is stored.
+    // volatile as it is set by the AlarmWriter background thread.
+    private volatile long id = NO_ID;
+    /**
+     * public static long id of an alarm item which has not been stored yet.
+     */
+    public static final long NO_ID = 0;
+
+    /**
+     * Constructor for Alarm Item, will take hour/minute in to be set for Alarm Item alarm time.
+     * Assumes hour is in 24 hour time, due to being sent from TimePicker android dialog.
+     * @param hour hour of the alarm, assumed to be 24 hour time
+     * @param minute minute of the alarm.
+     */
+    public AlarmItem(int hour, int minute){
+        this.active = true;
+        this.minuteOfDay = (short) (hour * 60 + minute);
+        // add current day of week
+        this.daysOfWeekMask = maskOf(LocalDate.now().getDayOfWeek());
+        this.alarmSound = AlarmSound.DEFAULT;
+    }
+
+    /**
+     * Constructor for Alarm Item from its stored form, used when reading the AlarmStore.
+     * @param minuteOfDay minute of the day the alarm is set for.
+     * @param daysOfWeekMask bitmask of the days of week, bit 0 being Monday.
+     * @param active if the alarm is active.
+     * @param alarmSoundUri Uri of the alarm sound.
+     * @param alarmSoundName name of the alarm sound.
+     */
+    AlarmItem(int minuteOfDay, byte daysOfWeekMask, boolean active, String alarmSoundUri,
+              String alarmSoundName){
+        this.active = active;
+        this.minuteOfDay = (short) minuteOfDay;
+        this.daysOfWeekMask = daysOfWeekMask;
+        this.alarmSound = AlarmSound.of(alarmSoundUri, alarmSoundName);
+    }
+
+    /**
+     * Copy constructor for Alarm Item, used by the AlarmWriter to take the values to save.
+     * @param toCopy the alarm item to copy.
+     */
+    public AlarmItem(AlarmItem toCopy){
+        this.active = toCopy.active;
+        this.minuteOfDay = toCopy.minuteOfDay;
+        this.daysOfWeekMask = toCopy.daysOfWeekMask;
+        this.alarmSound = toCopy.alarmSound;
+        this.label = toCopy.label;
+        this.labelGeneration = toCopy.labelGeneration;
+        this.id = toCopy.id;
+    }
+
+    /**
+     * gets a String representation of the time the Alarm will be triggered. The name is kept
+     * once made, and only made again if the 24 hour setting or locale changed in AlarmLabels.
+     * @return - returns the string representation of the Alarm Time, will be in either 24 hour or
+     * 12 hour time based on system settings.
+     */
+    public String getAlarmName(){
+        AlarmLabels labels = AlarmLabels.current();
+        if(label == null || labelGeneration != labels.getGeneration()){
+            label = labels.format(minuteOfDay);
+            labelGeneration = labels.getGeneration();
+        }
+        return label;
+    }
+
+    /**
+     * @return the stable id of the alarm, or NO_ID if it has not been stored yet.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Set the id of the alarm, called by the AlarmStore once the alarm is stored.
+     * @param id the id the AlarmStore gave this alarm.
+     */
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    /**
+     *
+     * @return if the alarm is active
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Set the active boolean
+     * @param active boolean to set the active to.
+     */
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    /**
+     * @return the minute of the day the alarm is set for, 0 being midnight.
+     */
+    public int getMinuteOfDay() {
+        return minuteOfDay;
+    }
+
+    /**
+     * Remove a day of the week
+     * @param toRemove the DayOfWeek to remove
+     */
+    public void removeDayOfWeek(DayOfWeek toRemove){
+        daysOfWeekMask &= ~maskOf(toRemove);
+    }
+
+    /**
+     * Add a day of the week
+     * @param toAdd the DayOfWeek to add.
+     */
+    public void addDayOfWeek(DayOfWeek toAdd){
+        daysOfWeekMask |= maskOf(toAdd);
+    }
+
+    /**
+     * @param dayOfWeek the DayOfWeek to check.
+     * @return true if the alarm is set for the day of the week.
+     */
+    public boolean hasDayOfWeek(DayOfWeek dayOfWeek){
+        return (daysOfWeekMask & maskOf(dayOfWeek)) != 0;
+    }
+
+    /**
+     * @return the days of week as a bitmask, bit 0 being Monday and bit 6 being Sunday.
+     */
+    public byte getDaysOfWeekMask(){
+        return daysOfWeekMask;
+    }
+
+    /**
+     * Update the alarm sound and name
+     * @param newAlarmSound the sound of the alarm in Uri format
+     * @param newAlarmName the title of the alarm
+     */
+    public void updateAlarmSound(String newAlarmSound, String newAlarmName){
+        this.alarmSound = AlarmSound.of(newAlarmSound, newAlarmName);
+    }
+
+    /**
+     *
+     * @return String alarm sound name
+     */
+    public String getAlarmSoundName() {
+        return alarmSound.getName();
+    }
+    /**
+     *
+     * @return String alarmoundUri
+     */
+    public String getAlarmSoundUri() {
+        return alarmSound.getUri();
+    }
+
+    /**
+     * Helper method which gets the bit of a day of the week in the days of week bitmask.
+     * @param dayOfWeek the DayOfWeek.
+     * @return the bitmask with only the day of the week set.
+     */
+    private static byte maskOf(DayOfWeek dayOfWeek){
+        return (byte) (1 << (dayOfWeek.getValue() - 1));
+    }
+
+    /**
+     * Overridden equals which consider an alarm item with the same alarm time to be equal.
+     * Used to prevent duplicate adds
+     * @param obj AlarmItem object to compare to this object
+     * @return if the two objects are equal.
+     */
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        if(obj == null)
+            return false;
+        if(!(obj instanceof AlarmItem))
+            return false;
+
+        return this.minuteOfDay == ((AlarmItem) obj).minuteOfDay;
+    }
+
+    /**
+     * Overridden hashCode consistent with equals, only the alarm time is used.
+     * @return the hash code of the alarm item.
+     */
+    @Override
+    public int hashCode() {
+        return minuteOfDay;
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.maxkernchen.walkingalarm;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * AlarmLabels class holds the one formatter alarm names are made with, for the 24 hour setting
+ * and locale in use. DateTimeFormatter is immutable so the formatter is shared by every alarm
+ * and thread. Each alarm keeps its name once made, along with the generation of the formatter
+ * it was made with, and the generation only changes when the 24 hour setting or locale does,
+ * so names are only made again then.
+ *
+ * configure is called from the main thread as the app, service or receiver starts, so the
+ * formatter is never built on the service thread.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public final class AlarmLabels {
+
+    // the formatter in use, replaced as a whole so readers always see a matching generation.
+    private static volatile AlarmLabels current = new AlarmLabels(0, false, Locale.getDefault());
+    // generation of the formatter, alarm names made with another generation are made again.
+    private final int generation;
+    // true if names are in 24 hour time.
+    private final boolean use24HourTime;
+    // locale names are made for.
+    private final Locale locale;
+    // the formatter for the alarm time.
+    private final DateTimeFormatter formatter;
+
+    /**
+     * Constructor for AlarmLabels.
+     * @param generation generation of the formatter.
+     * @param use24HourTime true if names are in 24 hour time.
+     * @param locale locale names are made for.
+     */
+    private AlarmLabels(int generation, boolean use24HourTime, Locale locale){
+        this.generation = generation;
+        this.use24HourTime = use24HourTime;
+        this.locale = locale;
+        this.formatter = DateTimeFormatter.ofPattern(use24HourTime ? "HH:mm" : "hh:mm a",
+                locale);
+    }
+
+    /**
+     * Set the 24 hour setting and locale alarm names are made with. Does nothing if neither
+     * changed, otherwise every alarm name is made again the next time it is used.
+     * @param use24HourTime true for 24 hour time, from the system settings.
+     * @param locale the locale in use.
+     */
+    public static synchronized void configure(boolean use24HourTime, Locale locale){
+        AlarmLabels labels = current;
+        if(labels.use24HourTime == use24HourTime && labels.locale.equals(locale))
+            return;
+        current = new AlarmLabels(labels.generation + 1, use24HourTime, locale);
+    }
+
+    /**
+     * @return the formatter in use.
+     */
+    static AlarmLabels current(){
+        return current;
+    }
+
+    /**
+     * @return generation of the formatter.
+     */
+    int getGeneration(){
+        return generation;
+    }
+
+    /**
+     * Make the name of an alarm.
+     * @param minuteOfDay minute of the day the alarm is set for.
+     * @return the alarm time, in 24 or 12 hour time.
+     */
+    String format(int minuteOfDay){
+        return formatter.format(LocalTime.of(minuteOfDay / 60, minuteOfDay % 60));
+    }
+}
@@ -0,0 +1,142 @@
+package com.maxkernchen.walkingalarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AlarmRecordFile class reads all alarm items from the single versioned binary file they were
+ * stored in before the AlarmStore database. It is only used to move those alarms into the
+ * AlarmStore. The file has a fixed width header, then a table of each distinct alarm sound,
+ * then one fixed width record per alarm. The app no longer writes the file, write is kept next
+ * to read so the benchmark makes files in the one layout read understands.
+ *
+ * Layout, all values big endian:
+ * header - int magic, short format version, short reserved, int alarm count, int sound count.
+ * sound table - for each sound, UTF sound uri then UTF sound name.
+ * alarm records - short minute of day, byte days of week mask, byte flags, short sound index.
+ * The flags held an active bit, and a triggered bit which is now kept in the TriggerJournal.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class AlarmRecordFile {
+
+    // magic number at the start of every alarm file, "WALM" in ascii.
+    private static final int MAGIC = 0x57414C4D;
+    // version of the file layout.
+    private static final short FORMAT_VERSION = 1;
+    // flag bit set when the alarm is active.
+    private static final int FLAG_ACTIVE = 1;
+    // the file the alarm items are stored in.
+    private final File file;
+
+    /**
+     * Constructor for AlarmRecordFile.
+     * @param file the file to read alarm items from.
+     */
+    public AlarmRecordFile(File file){
+        this.file = file;
+    }
+
+    /**
+     * @return true if the alarm file exists.
+     */
+    public boolean exists(){
+        return file.exists();
+    }
+
+    /**
+     * Read every alarm item from the file in one sequential read.
+     * @return list of alarm items, empty if the file does not exist.
+     * @throws IOException if the file could not be read, or is not a supported version.
+     */
+    public List<AlarmItem> read() throws IOException {
+        List<AlarmItem> items = new ArrayList<>();
+        if(!file.exists())
+            return items;
+
+        try(DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC)
+                throw new IOException("Not an alarm file: " + file);
+            short version = in.readShort();
+            if(version != FORMAT_VERSION)
+                throw new IOException("Unsupported alarm file version: " + version);
+            // reserved for future use.
+            in.readShort();
+            int alarmCount = in.readInt();
+            int soundCount = in.readInt();
+
+            String[] soundUris = new String[soundCount];
+            String[] soundNames = new String[soundCount];
+            for(int i = 0; i < soundCount; i++){
+                soundUris[i] = in.readUTF();
+                soundNames[i] = in.readUTF();
+            }
+
+            for(int i = 0; i < alarmCount; i++){
+                int minuteOfDay = in.readShort();
+                byte daysOfWeekMask = in.readByte();
+                int flags = in.readByte();
+                int soundIndex = in.readShort();
+                items.add(new AlarmItem(minuteOfDay, daysOfWeekMask,
+                        (flags & FLAG_ACTIVE) != 0, soundUris[soundIndex], soundNames[soundIndex]));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Write every alarm item to the file, replacing anything already in it. Written to a
+     * temporary file first, then renamed over the alarm file, so a failed write leaves the old
+     * file whole.
+     * @param items the alarm items to write.
+     * @throws IOException if the file could not be written.
+     */
+    public void write(List<AlarmItem> items) throws IOException {
+        // each distinct sound uri to its index in the sound table, in the order first used.
+        Map<String, Integer> soundIndexes = new LinkedHashMap<>();
+        List<String> soundNames = new ArrayList<>();
+        for(AlarmItem item : items){
+            if(soundIndexes.putIfAbsent(item.getAlarmSoundUri(), soundIndexes.size()) == null)
+                soundNames.add(item.getAlarmSoundName());
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try(FileOutputStream fileOut = new FileOutputStream(tempFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            // reserved for future use.
+            out.writeShort(0);
+            out.writeInt(items.size());
+            out.writeInt(soundIndexes.size());
+            int soundIndex = 0;
+            for(String soundUri : soundIndexes.keySet()){
+                out.writeUTF(soundUri);
+                out.writeUTF(soundNames.get(soundIndex++));
+            }
+
+            for(AlarmItem item : items){
+                out.writeShort(item.getMinuteOfDay());
+                out.writeByte(item.getDaysOfWeekMask());
+                out.writeByte(item.isActive() ? FLAG_ACTIVE : 0);
+                out.writeShort(soundIndexes.get(item.getAlarmSoundUri()));
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if(!tempFile.renameTo(file))
+            throw new IOException("Could not replace alarm file: " + file);
+    }
+}
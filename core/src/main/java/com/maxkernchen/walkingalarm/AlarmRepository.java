@@ -0,0 +1,76 @@
+package com.maxkernchen.walkingalarm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * AlarmRepository class holds the alarms shown in the list, indexed by the minute of the day
+ * each is set for. Alarm times are unique, as AlarmItem equals only checks the time, and never
+ * change, so the minute of the day is both the key duplicates are found with and the stable id
+ * of each alarm in the list. Adding, finding and removing an alarm is a hash lookup rather than
+ * a scan of the whole list, and the alarms keep the order they were added in.
+ *
+ * Not thread safe, only used on the main thread. Saving the alarms is left to the AlarmWriter,
+ * which writes only the alarms which changed.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class AlarmRepository {
+
+    // alarms by the minute of the day they are set for, in the order they were added.
+    private final LinkedHashMap<Integer, AlarmItem> alarmsByTime;
+
+    /**
+     * Constructor for AlarmRepository.
+     * @param alarmItems the alarms to start with, alarms with the same time as an earlier one
+     * are dropped.
+     */
+    public AlarmRepository(List<AlarmItem> alarmItems){
+        this.alarmsByTime = new LinkedHashMap<>(Math.max(16, alarmItems.size() * 2));
+        for(AlarmItem item : alarmItems){
+            add(item);
+        }
+    }
+
+    /**
+     * Add an alarm, unless there is already an alarm at the same time.
+     * @param item the alarm item to add.
+     * @return false if the alarm item is a duplicate, else true.
+     */
+    public boolean add(AlarmItem item){
+        return alarmsByTime.putIfAbsent(item.getMinuteOfDay(), item) == null;
+    }
+
+    /**
+     * @param minuteOfDay the minute of the day, which is the stable id of the alarm.
+     * @return the alarm at the minute of the day, or null if there is none.
+     */
+    public AlarmItem get(int minuteOfDay){
+        return alarmsByTime.get(minuteOfDay);
+    }
+
+    /**
+     * Remove an alarm.
+     * @param minuteOfDay the minute of the day, which is the stable id of the alarm.
+     * @return the alarm removed, or null if there was none.
+     */
+    public AlarmItem remove(int minuteOfDay){
+        return alarmsByTime.remove(minuteOfDay);
+    }
+
+    /**
+     * @return the number of alarms.
+     */
+    public int size(){
+        return alarmsByTime.size();
+    }
+
+    /**
+     * @return a copy of the alarms in the order they were added.
+     */
+    public List<AlarmItem> toList(){
+        return new ArrayList<>(alarmsByTime.values());
+    }
+}
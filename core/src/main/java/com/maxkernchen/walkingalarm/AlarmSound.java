@@ -0,0 +1,67 @@
+package com.maxkernchen.walkingalarm;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * AlarmSound class holds the uri and name of an alarm sound. Most alarms use one of a few
+ * sounds, so each sound is interned in a process wide pool and every alarm with that sound
+ * shares one instance, rather than each alarm holding its own copy of the uri and name.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public final class AlarmSound {
+
+    // pool of interned sounds by their uri, declared first so it exists before DEFAULT is made.
+    private static final ConcurrentHashMap<String, AlarmSound> pool = new ConcurrentHashMap<>();
+    /**
+     * The default alarm sound, the uri is the same as RingtoneManager.getDefaultUri(TYPE_ALARM).
+     */
+    public static final AlarmSound DEFAULT = of("content://settings/system/alarm_alert",
+            "Default Alarm Sound");
+    // the uri of the sound.
+    private final String uri;
+    // the name of the sound shown to the user.
+    private final String name;
+
+    /**
+     * Constructor for AlarmSound.
+     * @param uri the uri of the sound.
+     * @param name the name of the sound.
+     */
+    private AlarmSound(String uri, String name){
+        this.uri = uri;
+        this.name = name;
+    }
+
+    /**
+     * Get the interned sound with a uri and name, adding it to the pool if it is new.
+     * @param uri the uri of the sound, not null.
+     * @param name the name of the sound.
+     * @return the shared AlarmSound instance.
+     */
+    public static AlarmSound of(String uri, String name){
+        AlarmSound sound = pool.get(uri);
+        if(sound != null && Objects.equals(sound.name, name))
+            return sound;
+        // a new sound, or the sound was renamed, alarms holding the old name keep it.
+        sound = new AlarmSound(uri, name);
+        pool.put(uri, sound);
+        return sound;
+    }
+
+    /**
+     * @return the uri of the sound.
+     */
+    public String getUri(){
+        return uri;
+    }
+
+    /**
+     * @return the name of the sound shown to the user.
+     */
+    public String getName(){
+        return name;
+    }
+}
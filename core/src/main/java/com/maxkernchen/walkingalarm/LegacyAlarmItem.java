@@ -0,0 +1,50 @@
+package com.maxkernchen.walkingalarm;
+
+import java.time.DayOfWeek;
+import java.util.Calendar;
+import java.util.HashSet;
+
+/**
+ * LegacyAlarmItem class is the form alarm items had when they were stored as Gson json, with
+ * a full Calendar for the alarm time and a HashSet of the days of week. It is only read by Gson
+ * and moved into the compact AlarmItem, the field names must match the old json so are never
+ * changed.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class LegacyAlarmItem {
+
+    // Calendar of when the alarm should be triggered, only the hour and minute were used.
+    private Calendar alarmDate;
+    // if the alarm is active.
+    private boolean active;
+    // which days of week the alarm is active for.
+    private HashSet<DayOfWeek> daysOfWeek;
+    // the name of the alarm sound.
+    private String alarmSoundName;
+    // Uri of the alarm sound.
+    private String alarmSoundUri;
+
+    /**
+     * Move the legacy alarm into an AlarmItem, keeping every value it held. A missing sound
+     * becomes the default alarm sound, as it was shown before.
+     * @return the alarm item.
+     */
+    public AlarmItem toAlarmItem(){
+        int minuteOfDay = alarmDate == null ? 0 :
+                alarmDate.get(Calendar.HOUR_OF_DAY) * 60 + alarmDate.get(Calendar.MINUTE);
+        int daysOfWeekMask = 0;
+        if(daysOfWeek != null){
+            for(DayOfWeek dayOfWeek : daysOfWeek){
+                if(dayOfWeek != null)
+                    daysOfWeekMask |= 1 << (dayOfWeek.getValue() - 1);
+            }
+        }
+        if(alarmSoundUri == null)
+            return new AlarmItem(minuteOfDay, (byte) daysOfWeekMask, active,
+                    AlarmSound.DEFAULT.getUri(), AlarmSound.DEFAULT.getName());
+        return new AlarmItem(minuteOfDay, (byte) daysOfWeekMask, active, alarmSoundUri,
+                alarmSoundName);
+    }
+}
@@ -0,0 +1,190 @@
+package com.maxkernchen.walkingalarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TriggerJournal class records which occurrence of each alarm has already fired, kept apart from
+ * the alarm settings in the AlarmStore. Firing an alarm appends one fixed width record to the
+ * journal file, so the AlarmService never rewrites the alarms themselves, and an occurrence is
+ * fired once even if the alarm is armed for it again, such as after a time change.
+ *
+ * Each record is a long alarm id then a long occurrence, the minute since the epoch the alarm
+ * was due. Only the latest occurrence of each alarm matters, so once the journal holds
+ * MAX_RECORDS more records than there are alarms in it, it is compacted down to one record per
+ * recently fired alarm. Compacting against the number of alarms rather than a fixed size means
+ * a journal with many recently fired alarms still only appends between compactions.
+ *
+ * Kept free of Android classes, in the core module, so it can be benchmarked on the JVM.
+ *
+ * @version 1.4
+ * @author Max Kernchen
+ */
+public class TriggerJournal {
+
+    // name of the journal file.
+    private static final String JOURNAL_FILE_NAME = "trigger_journal.bin";
+    // size in bytes of each record, an alarm id and an occurrence.
+    private static final int RECORD_SIZE = 2 * Long.BYTES;
+    // number of records the journal can grow by, past one per alarm, before it is compacted.
+    private static final int MAX_RECORDS = 256;
+    // occurrences older than this many minutes before the newest one are dropped on compaction,
+    // an alarm can not be armed again for an occurrence a week in the past.
+    private static final long RETENTION_MINUTES = AlarmIndex.MINUTES_PER_WEEK;
+    // number of milliseconds in a minute
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    // single instance of the journal shared by the whole process.
+    private static TriggerJournal instance;
+    // the file the journal is stored in.
+    private final File file;
+    // latest fired occurrence of each alarm id, null until the journal is first read.
+    private Map<Long, Long> lastFired;
+    // number of records in the journal file.
+    private int recordCount;
+
+    /**
+     * Constructor for TriggerJournal.
+     * @param file the file to store the journal in.
+     */
+    public TriggerJournal(File file){
+        this.file = file;
+    }
+
+    /**
+     * Get the process wide TriggerJournal, creating it on first use.
+     * @param filesDir the app's files directory, from Context.getFilesDir.
+     * @return the TriggerJournal instance.
+     */
+    public static synchronized TriggerJournal getInstance(File filesDir){
+        if(instance == null){
+            instance = new TriggerJournal(new File(filesDir, JOURNAL_FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Fire the first of the alarms due now which has not already fired for this occurrence.
+     * @param dueAlarms the alarms due now, in the order to fire them.
+     * @param occurrenceMillis the time the alarms were due, only the minute is used.
+     * @return the alarm fired, or null if every alarm due already fired for this occurrence.
+     * @throws IOException if the journal could not be read or written.
+     */
+    public synchronized AlarmItem fireFirst(List<AlarmItem> dueAlarms, long occurrenceMillis)
+            throws IOException {
+        for(AlarmItem item : dueAlarms){
+            if(markFired(item.getId(), occurrenceMillis))
+                return item;
+        }
+        return null;
+    }
+
+    /**
+     * Record that an alarm fired for an occurrence, unless it already has.
+     * @param alarmId the id of the alarm.
+     * @param occurrenceMillis the time the alarm was due, only the minute is used.
+     * @return true if the occurrence was recorded, false if the alarm already fired for it.
+     * @throws IOException if the journal could not be read or written.
+     */
+    public synchronized boolean markFired(long alarmId, long occurrenceMillis) throws IOException {
+        load();
+        long occurrence = Math.floorDiv(occurrenceMillis, MILLIS_PER_MINUTE);
+        Long lastOccurrence = lastFired.get(alarmId);
+        if(lastOccurrence != null && lastOccurrence == occurrence)
+            return false;
+
+        // the alarm is only left marked as fired once the record is written, so a failed write
+        // leaves the journal and what is held in memory the same.
+        if(recordCount >= lastFired.size() + MAX_RECORDS){
+            lastFired.put(alarmId, occurrence);
+            try {
+                compact(occurrence);
+            } catch (IOException e) {
+                if(lastOccurrence == null)
+                    lastFired.remove(alarmId);
+                else
+                    lastFired.put(alarmId, lastOccurrence);
+                throw e;
+            }
+        }
+        else {
+            try(FileOutputStream fileOut = new FileOutputStream(file, true);
+                DataOutputStream out = new DataOutputStream(fileOut)) {
+                out.writeLong(alarmId);
+                out.writeLong(occurrence);
+                out.flush();
+                // make sure the record is on disk before the alarm goes off.
+                fileOut.getFD().sync();
+            }
+            lastFired.put(alarmId, occurrence);
+            recordCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Helper method which reads the journal the first time it is needed. A record cut short by
+     * the app being killed while appending is dropped by compacting the journal.
+     * @throws IOException if the journal could not be read.
+     */
+    private void load() throws IOException {
+        if(lastFired != null)
+            return;
+
+        lastFired = new HashMap<>();
+        recordCount = 0;
+        if(!file.exists())
+            return;
+
+        long length = file.length();
+        int records = (int) (length / RECORD_SIZE);
+        long newestOccurrence = Long.MIN_VALUE;
+        try(DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            for(int i = 0; i < records; i++){
+                long alarmId = in.readLong();
+                long occurrence = in.readLong();
+                lastFired.put(alarmId, occurrence);
+                newestOccurrence = Math.max(newestOccurrence, occurrence);
+            }
+        }
+        recordCount = records;
+        if(length % RECORD_SIZE != 0){
+            // drop the partial record at the end of the journal.
+            compact(newestOccurrence);
+        }
+    }
+
+    /**
+     * Helper method which rewrites the journal with only the latest occurrence of each alarm,
+     * dropping old occurrences. Written to a temporary file first, then renamed over the journal.
+     * @param newestOccurrence the newest occurrence in the journal, in minutes since the epoch.
+     * @throws IOException if the journal could not be written.
+     */
+    private void compact(long newestOccurrence) throws IOException {
+        lastFired.values().removeIf(occurrence ->
+                occurrence < newestOccurrence - RETENTION_MINUTES);
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try(FileOutputStream fileOut = new FileOutputStream(tempFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            for(Map.Entry<Long, Long> entry : lastFired.entrySet()){
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if(!tempFile.renameTo(file))
+            throw new IOException("Could not replace trigger journal: " + file);
+        recordCount = lastFired.size();
+    }
+}